@@ -3,6 +3,8 @@ package genepi.imputationserver;
 import java.lang.reflect.InvocationTargetException;
 
 import genepi.base.Toolbox;
+import genepi.imputationserver.tools.DecryptTool;
+import genepi.imputationserver.tools.InfoQueryTool;
 import genepi.imputationserver.tools.LegendFileLiftOverTool;
 import genepi.imputationserver.tools.LegendFileTool;
 import genepi.imputationserver.tools.VcfLiftOverTool;
@@ -20,6 +22,8 @@ public class Main extends Toolbox {
 		main.addTool("legend", LegendFileTool.class);
 		main.addTool("legend-liftover", LegendFileLiftOverTool.class);
 		main.addTool("vcf-liftover", VcfLiftOverTool.class);
+		main.addTool("decrypt", DecryptTool.class);
+		main.addTool("info-query", InfoQueryTool.class);
 
 		main.start();
 	}
@@ -2,17 +2,30 @@ package genepi.imputationserver.steps;
 
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.PreferenceStore;
-import genepi.hadoop.command.Command;
 import genepi.hadoop.common.WorkflowContext;
 import genepi.hadoop.common.WorkflowStep;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkCommitter;
+import genepi.imputationserver.steps.vcf.BgenConverter;
+import genepi.imputationserver.steps.vcf.BgenFile;
 import genepi.imputationserver.steps.vcf.MergedVcfFile;
+import genepi.imputationserver.steps.vcf.RsqFilter;
+import genepi.imputationserver.util.AesGcmOutputStream;
+import genepi.imputationserver.util.BgzfPartIndex;
 import genepi.imputationserver.util.ExportObject;
 import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.util.InfoColumnarWriter;
 import genepi.imputationserver.util.PasswordCreator;
+import genepi.imputationserver.util.PrefetchingHdfsReader;
 import genepi.io.FileUtil;
+import htsjdk.tribble.util.TabixUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -20,31 +33,63 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.io.ZipOutputStream;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-
 public class CompressionEncryption extends WorkflowStep {
 
 	public static final String DEFAULT_PASSWORD = "imputation@michigan";
 
+	// default number of chromosomes exported in parallel
+	public static int THREADS = 4;
+
+	public static final String FORMAT_ZIP = "zip";
+
+	// segmented aes-gcm files, encrypted on all cpus
+	public static final String FORMAT_AES_GCM = "aes-gcm";
+
+	public static final String AES_GCM_EXTENSION = ".aes";
+
+	// compresses and encrypts blocks of all chromosomes
+	private ExecutorService workers;
+
+	private int workerThreads;
+
+	private boolean columnarInfo = false;
+
+	private boolean bgen = false;
+
+	// number of hdfs files opened ahead
+	private int prefetch = PrefetchingHdfsReader.PREFETCH;
+
+	// min R2 of exported variants, 0 exports all variants
+	private float minRsq = 0;
+
 	@Override
 	public boolean run(WorkflowContext context) {
 
-		String workingDirectory = getFolder(CompressionEncryption.class);
-
 		String output = context.get("outputimputation");
 		String localOutput = context.get("local");
 		String aesEncryption = context.get("aesEncryption");
+		String resultFormat = context.get("resultformat");
+		final String format = resultFormat != null && !resultFormat.isEmpty() ? resultFormat : FORMAT_ZIP;
+		columnarInfo = "yes".equals(context.get("columnarinfo"));
+		bgen = "yes".equals(context.get("bgen"));
+		String r2Filter = context.get("r2Filter");
+		if (r2Filter != null && !r2Filter.isEmpty()) {
+			minRsq = Float.parseFloat(r2Filter);
+		}
 
 		// read config if mails should be sent
 		String folderConfig = getFolder(CompressionEncryption.class);
@@ -112,79 +157,44 @@ public class CompressionEncryption extends WorkflowStep {
 
 			}
 
-			for (String name : chromosomes.keySet()) {
-
-				ExportObject entry = chromosomes.get(name);
-				
-				context.println("Export and merge chromosome " + name);
-
-				// resort for chrX only
-				if (name.equals("X")) {
-					Collections.sort(entry.getDataFiles(), new ChrXComparator());
-					Collections.sort(entry.getInfoFiles(), new ChrXComparator());
-				}
-
-				// create temp fir
-				String temp = FileUtil.path(localOutput, "temp");
-				FileUtil.createDirectory(temp);
-
-				// output files
-				String dosageOutput = FileUtil.path(temp, "chr" + name + ".dose.vcf.gz");
-
-				String infoOutput = FileUtil.path(temp, "chr" + name + ".info.gz");
-
-				FileMerger.mergeAndGzInfo(entry.getInfoFiles(), infoOutput);
-
-				MergedVcfFile vcfFile = new MergedVcfFile(dosageOutput);
-
-				// add one header
-				// TODO: check number of samples per chunk....
-				String header = entry.getHeaderFiles().get(0);
-				vcfFile.addFile(HdfsUtil.open(header));
-
-				// add data files
-				for (String file : entry.getDataFiles()) {
-					context.println("Read file " + file);
-					vcfFile.addFile(HdfsUtil.open(file));
-				}
-
-				vcfFile.close();
-
-				// verify if valid vcf.gz
-				if (name.contains("22")) {
-					Command tabix = new Command(FileUtil.path(workingDirectory, "bin", "tabix"));
-					tabix.setSilent(false);
-					tabix.setParams("-f", dosageOutput);
-					if (tabix.execute() != 0) {
-						context.endTask("Error during index creation: " + tabix.getStdOut(), WorkflowContext.ERROR);
-						return false;
+			// chromosomes are exported in parallel, compression and encryption
+			// are limited to the available cpus
+			int threads = getInt(store, "export.threads", THREADS);
+			int cpus = getInt(store, "export.cpus", Runtime.getRuntime().availableProcessors());
+			workerThreads = Math.max(cpus, 1);
+			prefetch = getInt(store, "export.prefetch", PrefetchingHdfsReader.PREFETCH);
+			workers = Executors.newFixedThreadPool(workerThreads);
+
+			ExecutorService executor = Executors
+					.newFixedThreadPool(Math.max(1, Math.min(threads, chromosomes.size())));
+
+			final String zipPassword = password;
+			List<String> names = new Vector<String>(chromosomes.keySet());
+			Collections.sort(names);
+			Map<String, Future<Boolean>> futures = new LinkedHashMap<String, Future<Boolean>>();
+			for (final String name : names) {
+				final ExportObject entry = chromosomes.get(name);
+				futures.put(name, executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						exportChromosome(context, name, entry, localOutput, zipPassword, aesEncryption, format);
+						return true;
 					}
-				}
-
-				ZipParameters param = new ZipParameters();
-				param.setEncryptFiles(true);
-				param.setPassword(password);
-				param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_STANDARD);
+				}));
+			}
 
-				if (aesEncryption != null && aesEncryption.equals("yes")) {
-					param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
-					param.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
-					param.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-					param.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
+			try {
+				for (String name : futures.keySet()) {
+					try {
+						futures.get(name).get();
+					} catch (ExecutionException e) {
+						throw new IOException("Export of chromosome " + name + " failed: " + e.getCause().getMessage(),
+								e.getCause());
+					}
 				}
-
-				// create zip file
-				ArrayList<File> files = new ArrayList<File>();
-				files.add(new File(dosageOutput));
-				// files.add(new File(vcfOutput + ".tbi"));
-				files.add(new File(infoOutput));
-
-				ZipFile file = new ZipFile(new File(FileUtil.path(localOutput, "chr_" + name + ".zip")));
-				file.createZipFile(files, param);
-
-				// delete temp dir
-				FileUtil.deleteDirectory(temp);
-
+			} finally {
+				executor.shutdownNow();
+				workers.shutdownNow();
 			}
 
 			// delete temporary files
@@ -246,23 +256,338 @@ public class CompressionEncryption extends WorkflowStep {
 
 	}
 
-	private List<String> findFiles(String folder, String pattern) throws IOException {
+	private void exportChromosome(WorkflowContext context, String name, ExportObject entry, String localOutput,
+			String password, String aesEncryption, String format) throws Exception {
+
+		context.println("Export and merge chromosome " + name);
 
-		Configuration conf = HdfsUtil.getConfiguration();
+		// resort for chrX only
+		if (name.equals("X")) {
+			Collections.sort(entry.getDataFiles(), new ChrXComparator());
+			Collections.sort(entry.getInfoFiles(), new ChrXComparator());
+		}
 
-		FileSystem fileSystem = FileSystem.get(conf);
-		Path pathFolder = new Path(folder);
-		FileStatus[] files = fileSystem.listStatus(pathFolder);
+		// unencrypted files are never written to the download folder
+		String temp = FileUtil.path(context.getLocalTemp(), "export");
+		FileUtil.createDirectory(temp);
 
-		List<String> dataFiles = new Vector<String>();
-		for (FileStatus file : files) {
-			if (!file.isDir() && !file.getPath().getName().startsWith("_")
-					&& file.getPath().getName().endsWith(pattern)) {
-				dataFiles.add(file.getPath().toString());
+		if (format.equals(FORMAT_AES_GCM)) {
+
+			String dosageOutput = FileUtil.path(localOutput, "chr" + name + ".dose.vcf.gz" + AES_GCM_EXTENSION);
+			OutputStream dosage = createAesGcmStream(dosageOutput, password);
+			byte[] index = null;
+			try {
+				index = writeDosage(context, entry, dosage);
+			} finally {
+				dosage.close();
 			}
+
+			if (index != null) {
+				OutputStream indexOutput = createAesGcmStream(FileUtil.path(localOutput,
+						"chr" + name + ".dose.vcf.gz" + TabixUtils.STANDARD_INDEX_EXTENSION + AES_GCM_EXTENSION),
+						password);
+				indexOutput.write(index);
+				indexOutput.close();
+			}
+
+			String infoOutput = FileUtil.path(localOutput, "chr" + name + ".info.gz" + AES_GCM_EXTENSION);
+			OutputStream info = createAesGcmStream(infoOutput, password);
+			InfoColumnarWriter columns = null;
+			if (columnarInfo) {
+				columns = new InfoColumnarWriter(createAesGcmStream(
+						FileUtil.path(localOutput, "chr" + name + InfoColumnarWriter.EXTENSION + AES_GCM_EXTENSION),
+						password));
+			}
+			try {
+				writeInfo(entry, info, columns);
+			} finally {
+				info.close();
+				if (columns != null) {
+					columns.close();
+				}
+			}
+
+			if (bgen) {
+				String bgenOutput = FileUtil.path(temp, "chr" + name + BgenFile.EXTENSION);
+				String bgenIndexOutput = FileUtil.path(temp, "chr" + name + BgenFile.INDEX_EXTENSION);
+				try {
+					writeBgen(context, entry, bgenOutput, bgenIndexOutput);
+					for (String file : new String[] { bgenOutput, bgenIndexOutput }) {
+						OutputStream encrypted = createAesGcmStream(
+								FileUtil.path(localOutput, FileUtil.getFilename(file) + AES_GCM_EXTENSION), password);
+						try {
+							copy(file, encrypted);
+						} finally {
+							encrypted.close();
+						}
+					}
+				} finally {
+					FileUtil.deleteFile(bgenOutput);
+					FileUtil.deleteFile(bgenIndexOutput);
+				}
+			}
+
+			return;
+
 		}
-		Collections.sort(dataFiles);
-		return dataFiles;
+
+		// entries are streamed from hdfs into the encrypted zip file
+		ZipOutputStream zip = new ZipOutputStream(
+				new BufferedOutputStream(new FileOutputStream(FileUtil.path(localOutput, "chr_" + name + ".zip"))));
+
+		try {
+
+			zip.putNextEntry(null, createZipParameters("chr" + name + ".dose.vcf.gz", password, aesEncryption));
+			byte[] index = writeDosage(context, entry, zip);
+			zip.closeEntry();
+
+			if (index != null) {
+				zip.putNextEntry(null, createZipParameters(
+						"chr" + name + ".dose.vcf.gz" + TabixUtils.STANDARD_INDEX_EXTENSION, password, aesEncryption));
+				zip.write(index);
+				zip.closeEntry();
+			} else {
+				context.println("No index for chromosome " + name + " created.");
+			}
+
+			// columnar file is written into a local temp file while the info
+			// entry is streamed
+			String columnsOutput = FileUtil.path(temp, "chr" + name + InfoColumnarWriter.EXTENSION);
+			InfoColumnarWriter columns = null;
+			if (columnarInfo) {
+				columns = new InfoColumnarWriter(new BufferedOutputStream(new FileOutputStream(columnsOutput)));
+			}
+
+			try {
+				zip.putNextEntry(null, createZipParameters("chr" + name + ".info.gz", password, aesEncryption));
+				writeInfo(entry, zip, columns);
+				zip.closeEntry();
+
+				if (columns != null) {
+					columns.close();
+					zip.putNextEntry(null,
+							createZipParameters("chr" + name + InfoColumnarWriter.EXTENSION, password, aesEncryption));
+					copy(columnsOutput, zip);
+					zip.closeEntry();
+				}
+			} finally {
+				if (columns != null) {
+					columns.close();
+					FileUtil.deleteFile(columnsOutput);
+				}
+			}
+
+			if (bgen) {
+				String bgenOutput = FileUtil.path(temp, "chr" + name + BgenFile.EXTENSION);
+				String bgenIndexOutput = FileUtil.path(temp, "chr" + name + BgenFile.INDEX_EXTENSION);
+				try {
+					writeBgen(context, entry, bgenOutput, bgenIndexOutput);
+					for (String file : new String[] { bgenOutput, bgenIndexOutput }) {
+						zip.putNextEntry(null, createZipParameters(FileUtil.getFilename(file), password, aesEncryption));
+						copy(file, zip);
+						zip.closeEntry();
+					}
+				} finally {
+					FileUtil.deleteFile(bgenOutput);
+					FileUtil.deleteFile(bgenIndexOutput);
+				}
+			}
+
+			zip.finish();
+
+		} finally {
+			zip.close();
+		}
+
+	}
+
+	// returns the tabix index or null if a part has no index
+	private byte[] writeDosage(WorkflowContext context, ExportObject entry, OutputStream out) throws IOException {
+
+		MergedVcfFile vcfFile = new MergedVcfFile(out);
+		vcfFile.setIndexed(true);
+
+		// add one header
+		// TODO: check number of samples per chunk....
+		String header = entry.getHeaderFiles().get(0);
+		vcfFile.addFile(HdfsUtil.open(header));
+
+		// variants below the threshold are removed while merging
+		RsqFilter filter = null;
+		if (minRsq > 0) {
+			filter = new RsqFilter(minRsq);
+		}
+
+		// next data files and their part indices are opened ahead
+		PrefetchingHdfsReader data = new PrefetchingHdfsReader(entry.getDataFiles());
+		data.setPrefetch(prefetch);
+		PrefetchingHdfsReader indices = null;
+		if (filter == null) {
+			List<String> indexFiles = new Vector<String>();
+			for (String file : entry.getDataFiles()) {
+				indexFiles.add(file + BgzfPartIndex.EXTENSION);
+			}
+			indices = new PrefetchingHdfsReader(indexFiles);
+			indices.setPrefetch(prefetch);
+			indices.setOptional(true);
+		}
+
+		// add data files
+		try {
+			while (data.next()) {
+				context.println("Read file " + data.getFilename());
+				if (filter != null) {
+					vcfFile.addFile(data.get(), filter, workers, workerThreads * 2);
+				} else {
+					indices.next();
+					vcfFile.addFile(data.get(), indices.get());
+				}
+			}
+		} finally {
+			data.close();
+			if (indices != null) {
+				indices.close();
+			}
+		}
+
+		vcfFile.finish();
+
+		if (filter != null) {
+			context.println("Removed " + filter.getRemoved() + " of " + (filter.getKept() + filter.getRemoved())
+					+ " variants with R2 < " + minRsq + ".");
+		}
+
+		return vcfFile.getIndex();
+
+	}
+
+	/**
+	 * Converts the data parts on the workers into local parts and writes the
+	 * bgen file and its variant index.
+	 */
+	private void writeBgen(WorkflowContext context, ExportObject entry, String output, String indexOutput)
+			throws IOException {
+
+		final List<String> samples = BgenFile.readSamples(HdfsUtil.open(entry.getHeaderFiles().get(0)));
+
+		List<String> parts = new Vector<String>();
+		List<Future<Integer>> futures = new Vector<Future<Integer>>();
+		for (int i = 0; i < entry.getDataFiles().size(); i++) {
+			final String file = entry.getDataFiles().get(i);
+			final String part = output + ".part" + i;
+			parts.add(part);
+			futures.add(workers.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					BgenConverter converter = new BgenConverter(samples.size());
+					if (minRsq > 0) {
+						converter.setFilter(new RsqFilter(minRsq));
+					}
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(part));
+					OutputStream index = new BufferedOutputStream(new FileOutputStream(part + ".idx"));
+					try {
+						converter.convert(HdfsUtil.open(file), out, index);
+					} finally {
+						out.close();
+						index.close();
+					}
+					return converter.getVariants();
+				}
+			}));
+		}
+
+		try {
+
+			long variants = 0;
+			for (Future<Integer> future : futures) {
+				try {
+					variants += future.get();
+				} catch (InterruptedException e) {
+					throw new IOException("Bgen conversion interrupted.", e);
+				} catch (ExecutionException e) {
+					throw new IOException("Bgen conversion failed: " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+			OutputStream index = new BufferedOutputStream(new FileOutputStream(indexOutput));
+			try {
+				BgenFile bgenFile = new BgenFile(out, index);
+				bgenFile.writeHeader(samples, variants);
+				for (String part : parts) {
+					bgenFile.addPart(new FileInputStream(part), new FileInputStream(part + ".idx"));
+				}
+				bgenFile.finish();
+			} finally {
+				out.close();
+				index.close();
+			}
+
+			context.println("Bgen file " + FileUtil.getFilename(output) + " with " + variants + " variants created.");
+
+		} finally {
+			for (Future<Integer> future : futures) {
+				future.cancel(true);
+			}
+			for (String part : parts) {
+				FileUtil.deleteFile(part);
+				FileUtil.deleteFile(part + ".idx");
+			}
+		}
+
+	}
+
+	// blocks are compressed by the workers, columns can be null
+	private void writeInfo(ExportObject entry, OutputStream out, InfoColumnarWriter columns) throws IOException {
+		FileMerger.mergeAndGzInfo(entry.getInfoFiles(), out, workers, workerThreads * 2, columns);
+	}
+
+	private void copy(String filename, OutputStream out) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private OutputStream createAesGcmStream(String filename, String password) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+		return new AesGcmOutputStream(out, password, workers, workerThreads * 2, AesGcmOutputStream.SEGMENT_SIZE);
+	}
+
+	private ZipParameters createZipParameters(String filename, String password, String aesEncryption) {
+
+		ZipParameters param = new ZipParameters();
+		param.setEncryptFiles(true);
+		param.setPassword(password);
+		param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_STANDARD);
+
+		if (aesEncryption != null && aesEncryption.equals("yes")) {
+			param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
+			param.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
+		}
+
+		// files are gzipped already
+		param.setCompressionMethod(Zip4jConstants.COMP_STORE);
+		param.setSourceExternalStream(true);
+		param.setFileNameInZip(filename);
+		return param;
+
+	}
+
+	private int getInt(PreferenceStore store, String key, int defaultValue) {
+		String value = store.getString(key);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+
+	// outputs are stored in one folder per chunk
+	private List<String> findFiles(String folder, String pattern) throws IOException {
+		return ChunkCommitter.findFiles(folder, pattern);
 	}
 
 	class ChrXComparator implements Comparator<String> {
@@ -36,6 +36,7 @@ public class FastQualityControl extends WorkflowStep {
 		String reference = context.get("refpanel");
 		String population = context.get("population");
 		int chunkSize = Integer.parseInt(context.get("chunksize"));
+		String chunkMode = context.get("chunkmode");
 
 		String mafFile = context.get("mafFile");
 		String chunkFileDir = context.get("chunkFileDir");
@@ -51,6 +52,19 @@ public class FastQualityControl extends WorkflowStep {
 		PreferenceStore store = new PreferenceStore(new File(FileUtil.path(folder, "job.config")));
 		int phasingWindow = Integer.parseInt(store.getString("phasing.window"));
 
+		// bounds for adaptive chunks
+		int minChunkSize = chunkSize / 4;
+		if (store.getString("chunks.min.size") != null) {
+			minChunkSize = Integer.parseInt(store.getString("chunks.min.size"));
+		}
+		int maxChunkSize = chunkSize * 2;
+		if (store.getString("chunks.max.size") != null) {
+			maxChunkSize = Integer.parseInt(store.getString("chunks.max.size"));
+		}
+
+		// merge chunks that would be excluded with their neighbour
+		String mergeChunks = store.getString("chunks.merge");
+
 		// load reference panels
 		RefPanelList panels = null;
 		try {
@@ -127,6 +141,10 @@ public class FastQualityControl extends WorkflowStep {
 		task.setVcfFilenames(vcfFilenames);
 		task.setExcludedSnpsWriter(excludedSnpsWriter);
 		task.setChunkSize(chunkSize);
+		task.setAdaptiveChunks(chunkMode != null && chunkMode.equals("adaptive"));
+		task.setMinChunkSize(minChunkSize);
+		task.setMaxChunkSize(maxChunkSize);
+		task.setMergeChunks(mergeChunks != null && mergeChunks.equals("true"));
 		task.setPhasingWindow(phasingWindow);
 		task.setPopulation(population);
 		// support relative path
@@ -192,6 +210,11 @@ public class FastQualityControl extends WorkflowStep {
 			text.append("See " + context.createLinkToFile("statisticDir", "typed-only.txt") + " for details" + "<br>");
 		}
 
+		if (task.getMergedChunks() > 0) {
+			text.append("<br>" + formatter.format(task.getMergedChunks())
+					+ " Chunk(s) with low overlap or < 3 SNPs merged with the following chunk.");
+		}
+
 		if (task.getRemovedChunksSnps() > 0) {
 
 			text.append("<br><b>Warning:</b> " + formatter.format(task.getRemovedChunksSnps())
@@ -2,17 +2,29 @@ package genepi.imputationserver.steps;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
 
 import genepi.hadoop.HadoopJob;
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.PreferenceStore;
 import genepi.hadoop.common.ContextLog;
 import genepi.hadoop.common.WorkflowContext;
-import genepi.hadoop.io.HdfsLineWriter;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkCheckpoint;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkCommitter;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkProfile;
 import genepi.imputationserver.steps.imputationMinimac3.ImputationJobMinimac3;
+import genepi.imputationserver.steps.imputationMinimac3.StragglerDetector;
+import genepi.imputationserver.steps.vcf.ChunkManifest;
 import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.AdmissionController;
 import genepi.imputationserver.util.ParallelHadoopJobStep;
 import genepi.imputationserver.util.RefPanel;
 import genepi.imputationserver.util.RefPanelList;
@@ -37,6 +49,27 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 	public static int THREADS = 25;
 
+	public static final String GENOME_WIDE = "genome";
+
+	public static final String MANIFESTS = "manifests";
+
+	// manifests of chromosomes imputed in their own job
+	public static final String SEPARATE_MANIFESTS = "manifests-separate";
+
+	private List<String> chromosomes = new Vector<String>();
+
+	// min interval between two straggler checks
+	public static long STRAGGLER_INTERVAL = 60000;
+
+	private StragglerDetector stragglerDetector = null;
+
+	// running time / expected time of stragglers
+	public static final double REPORT_FACTOR = 3;
+
+	public static final double RELAUNCH_FACTOR = 5;
+
+	private long nextStragglerCheck = 0;
+
 	public ImputationMinimac3() {
 		super(THREADS);
 		jobs = new HashMap<String, HadoopJob>();
@@ -125,18 +158,113 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			return false;
 		}
 
-		// execute one job per chromosome
+		// execute one job per chromosome or one genome-wide job. X regions are
+		// always separate jobs: a failed X region only drops chr X, a failed
+		// genome-wide job stops the imputation like a failed autosome.
+		PreferenceStore store = new PreferenceStore(new File(FileUtil.path(folder, "job.config")));
+		boolean genomeWide = "true".equals(store.getString("minimac.genome.wide"));
+
+		// limits for all workflows on this host
+		String user = context.get("user");
+		if (user == null) {
+			user = context.getJobId();
+		}
+		if (store.getString("admission.folder") != null) {
+			try {
+				AdmissionController admission = new AdmissionController(store.getString("admission.folder"));
+				admission.setMaxJobs(getInt(store, "admission.jobs"));
+				admission.setMaxJobsPerUser(getInt(store, "admission.jobs.user"));
+				admission.setMaxJobsPerPanel(getInt(store, "admission.jobs.panel"));
+				admission.setMaxSlots(getInt(store, "admission.slots"));
+				setAdmissionController(admission);
+			} catch (IOException e) {
+				context.error(e.getMessage());
+				return false;
+			}
+		}
+
+		// resume mode reuses the chunks of an earlier job of the same user
+		String checkpointFolder = store.getString(ChunkCheckpoint.CHECKPOINT_FOLDER);
+		String resumeJob = context.get("resume");
+		if (resumeJob != null) {
+			resumeJob = resumeJob.trim().isEmpty() ? null : resumeJob.trim();
+		}
+		if (checkpointFolder != null) {
+			int days = ChunkCheckpoint.DEFAULT_DAYS;
+			if (store.getString(ChunkCheckpoint.CHECKPOINT_DAYS) != null) {
+				days = Integer.parseInt(store.getString(ChunkCheckpoint.CHECKPOINT_DAYS));
+			}
+			try {
+				ChunkCheckpoint.cleanup(checkpointFolder, days);
+			} catch (IOException e) {
+				context.println("Deleting old checkpoints failed: " + e.getMessage());
+			}
+			if (resumeJob != null) {
+				context.println("Resuming job " + resumeJob + ".");
+			}
+		} else if (resumeJob != null) {
+			context.println("Checkpoints are disabled, job " + resumeJob + " can not be resumed.");
+			resumeJob = null;
+		}
+
+		// tasks running longer than expected from their cost are reported and
+		// relaunched once, 0 disables both
+		double reportFactor = getDouble(store, "minimac.straggler.report", REPORT_FACTOR);
+		double relaunchFactor = getDouble(store, "minimac.straggler.relaunch", RELAUNCH_FACTOR);
+		if (reportFactor > 0 || relaunchFactor > 0) {
+			try {
+				stragglerDetector = new StragglerDetector(HdfsUtil.getConfiguration());
+				stragglerDetector.setReportFactor(reportFactor > 0 ? reportFactor : Double.MAX_VALUE);
+				stragglerDetector.setRelaunchFactor(relaunchFactor);
+			} catch (IOException e) {
+				context.println("Straggler detection disabled: " + e.getMessage());
+			}
+		}
+
 		try {
 			String[] chunkFiles = FileUtil.getFiles(input, "*.*");
 
 			context.beginTask("Start Imputation...");
 
+			final Map<String, ChunkFileConverterResult> inputs = new LinkedHashMap<String, ChunkFileConverterResult>();
+			List<String> genomeChromosomes = new Vector<String>();
 			for (String chunkFile : chunkFiles) {
 
 				String[] tiles = chunkFile.split("/");
 				String chr = tiles[tiles.length - 1];
+				chromosomes.add(chr);
+
+				boolean separate = !genomeWide || chr.startsWith("X.");
+				ChunkFileConverterResult result = convertChunkfile(chunkFile, context.getHdfsTemp(),
+						genomeWide && separate ? SEPARATE_MANIFESTS : MANIFESTS);
+				if (!separate) {
+					genomeChromosomes.add(chr);
+					ChunkFileConverterResult genomeResult = inputs.get(GENOME_WIDE);
+					if (genomeResult == null) {
+						genomeResult = new ChunkFileConverterResult();
+						genomeResult.filename = HdfsUtil.path(context.getHdfsTemp(), MANIFESTS);
+						inputs.put(GENOME_WIDE, genomeResult);
+					}
+					genomeResult.needsPhasing = genomeResult.needsPhasing || result.needsPhasing;
+					genomeResult.cost += result.cost;
+					genomeResult.chunks.addAll(result.chunks);
+				} else {
+					inputs.put(chr, result);
+				}
+			}
+
+			// submit most expensive chromosomes first
+			List<String> submitOrder = new Vector<String>(inputs.keySet());
+			Collections.sort(submitOrder, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					return Long.compare(inputs.get(b).cost, inputs.get(a).cost);
+				}
+			});
 
-				ChunkFileConverterResult result = convertChunkfile(chunkFile, context.getHdfsTemp());
+			for (String chr : submitOrder) {
+
+				ChunkFileConverterResult result = inputs.get(chr);
 
 				ImputationJobMinimac3 job = new ImputationJobMinimac3(context.getJobId() + "-chr-" + chr,
 						new ContextLog(context), queue) {
@@ -160,8 +288,14 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 				};
 				job.setFolder(folder);
 
-				String hdfsFilenameChromosome = resolvePattern(panel.getHdfs(), chr);
-				job.setRefPanelHdfs(hdfsFilenameChromosome);
+				if (chr.equals(GENOME_WIDE)) {
+					// panels are resolved by the mapper
+					job.setChromosomes(genomeChromosomes);
+					job.setRefPanelHdfs(panel.getHdfs());
+				} else {
+					String hdfsFilenameChromosome = resolvePattern(panel.getHdfs(), chr);
+					job.setRefPanelHdfs(hdfsFilenameChromosome);
+				}
 
 				job.setBuild(panel.getBuild());
 				if (panel.getMapMinimac() != null) {
@@ -187,8 +321,12 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 						// eagle
 						context.println("  Setting up eagle reference and map files...");
 						job.setMapEagleHdfs(panel.getMapEagle());
-						String refEagleFilenameChromosome = resolvePattern(panel.getRefEagle(), chr);
-						job.setRefEagleHdfs(refEagleFilenameChromosome);
+						if (chr.equals(GENOME_WIDE)) {
+							job.setRefEagleHdfs(panel.getRefEagle());
+						} else {
+							String refEagleFilenameChromosome = resolvePattern(panel.getRefEagle(), chr);
+							job.setRefEagleHdfs(refEagleFilenameChromosome);
+						}
 					}
 					job.setPhasing(phasing);
 
@@ -197,7 +335,11 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 				}
 
 				job.setInput(result.filename);
-				job.setOutput(HdfsUtil.path(output, chr));
+				if (chr.equals(GENOME_WIDE)) {
+					job.setOutput(output);
+				} else {
+					job.setOutput(HdfsUtil.path(output, chr));
+				}
 				job.setRefPanel(reference);
 				job.setLogFilename(FileUtil.path(log, "chr_" + chr + ".log"));
 				job.setPopulation(population);
@@ -205,9 +347,15 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 				job.setWindow(window);
 				job.setNoCache(noCache);
 				job.setMinimacBin(minimacBin);
+				job.setConcurrentJobs(Math.min(inputs.size(), THREADS));
+				if (checkpointFolder != null) {
+					job.setCheckpoint(user, context.getJobId(), resumeJob);
+				}
 				job.setJarByClass(ImputationJobMinimac3.class);
 
-				executeJarInBackground(chr, context, job);
+				// chunks are packed, the weight is the number of map tasks
+				int tasks = job.getTasks(result.chunks);
+				executeJarInBackground(chr, context, job, user, reference, tasks);
 				jobs.put(chr, job);
 
 			}
@@ -216,6 +364,11 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			running = false;
 			context.println("All jobs terminated.");
 
+			// folders of failed and duplicate attempts
+			for (String folder : HdfsUtil.getDirectories(output)) {
+				ChunkCommitter.cleanup(folder);
+			}
+
 			// one job was failed
 			if (error) {
 				context.println("Imputation on chromosome " + errorChr + " failed. Imputation was stopped.");
@@ -249,6 +402,18 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 			// everything fine
 
+			// checkpoints are only needed to resume failed jobs
+			if (ok && checkpointFolder != null) {
+				try {
+					ChunkCheckpoint.delete(checkpointFolder, user, context.getJobId());
+					if (resumeJob != null) {
+						ChunkCheckpoint.delete(checkpointFolder, user, resumeJob);
+					}
+				} catch (IOException e) {
+					context.println("Deleting checkpoints failed: " + e.getMessage());
+				}
+			}
+
 			updateProgress();
 			printSummary();
 
@@ -310,6 +475,47 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 		}
 
+		printProfile();
+
+	}
+
+	// aggregates the timing records of all chunks per chromosome
+
+	private void printProfile() {
+
+		context.println("Profile: ");
+
+		for (String id : chromosomes) {
+
+			try {
+
+				ChunkProfile summary = null;
+
+				List<String> files = ChunkCommitter.findFiles(HdfsUtil.path(output, id), ChunkProfile.EXTENSION);
+				for (String file : files) {
+					LineReader reader = new LineReader(HdfsUtil.open(file));
+					while (reader.next()) {
+						ChunkProfile profile = new ChunkProfile(reader.get());
+						if (summary == null) {
+							summary = profile;
+						} else {
+							summary.add(profile);
+						}
+					}
+					reader.close();
+				}
+
+				if (summary != null) {
+					context.println("  Chr " + id + " (" + summary.getChunks() + " chunks, dominated by "
+							+ summary.getDominatingPhase().name().toLowerCase() + "): " + summary);
+				}
+
+			} catch (Exception e) {
+				context.println("[INFO] Error while reading profile of chr " + id);
+			}
+
+		}
+
 	}
 
 	// update message
@@ -321,10 +527,10 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 		int i = 1;
 
-		for (String id : jobs.keySet()) {
+		for (String id : chromosomes) {
 
-			HadoopJob job = jobs.get(id);
-			Integer state = getState(job);
+			HadoopJob job = getJob(id);
+			Integer state = job != null ? getState(job) : null;
 
 			if (state != null) {
 
@@ -379,6 +585,15 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 	}
 
+	// in genome-wide mode all chromosomes share one job
+	private HadoopJob getJob(String chr) {
+		HadoopJob job = jobs.get(chr);
+		if (job == null) {
+			job = jobs.get(GENOME_WIDE);
+		}
+		return job;
+	}
+
 	@Override
 	protected synchronized void onJobStart(String id, WorkflowContext context) {
 		context.println("Running job chr_" + id + "....");
@@ -427,6 +642,33 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 		if (running) {
 			String text = updateMessage();
 			context.updateTask(text, WorkflowContext.RUNNING);
+			checkStragglers();
+		}
+
+	}
+
+	private void checkStragglers() {
+
+		long now = System.currentTimeMillis();
+		if (stragglerDetector == null || now < nextStragglerCheck) {
+			return;
+		}
+		nextStragglerCheck = now + STRAGGLER_INTERVAL;
+
+		// in genome-wide mode all chromosomes share one job
+		Set<String> checked = new HashSet<String>();
+		for (String id : chromosomes) {
+			HadoopJob job = getJob(id);
+			if (job == null || job.getJobId() == null || getState(job) != RUNNING || !checked.add(job.getJobId())) {
+				continue;
+			}
+			try {
+				for (String message : stragglerDetector.check(job.getJobId())) {
+					context.println("  " + job.getJobId() + ": " + message);
+				}
+			} catch (IOException e) {
+				context.println("  Chr " + id + ": straggler detection failed: " + e.getMessage());
+			}
 		}
 
 	}
@@ -435,22 +677,31 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 		public String filename;
 
 		public boolean needsPhasing;
+
+		public long cost;
+
+		public List<VcfChunk> chunks = new Vector<VcfChunk>();
 	}
 
-	private ChunkFileConverterResult convertChunkfile(String chunkFile, String output) throws IOException {
+	private ChunkFileConverterResult convertChunkfile(String chunkFile, String output, String manifests)
+			throws IOException {
 
 		String name = FileUtil.getFilename(chunkFile);
-		String newChunkFile = HdfsUtil.path(output, name);
+		String newChunkFile = HdfsUtil.path(HdfsUtil.path(output, manifests), name);
 
-		LineReader reader = new LineReader(chunkFile);
-		HdfsLineWriter writer = new HdfsLineWriter(newChunkFile);
+		ChunkManifest manifest = ChunkManifest.read(chunkFile);
 
-		boolean phased = true;
+		// most expensive chunks first
+		Collections.sort(manifest.getChunks(), new Comparator<VcfChunk>() {
+			@Override
+			public int compare(VcfChunk a, VcfChunk b) {
+				return Long.compare(b.getCost(), a.getCost());
+			}
+		});
 
-		while (reader.next()) {
-			VcfChunk chunk = new VcfChunk(reader.get());
+		boolean phased = manifest.isPhased();
 
-			phased = phased && chunk.isPhased();
+		for (VcfChunk chunk : manifest.getChunks()) {
 
 			// put vcf file
 			String sourceVcf = chunk.getVcfFilename();
@@ -463,21 +714,35 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			String targetIndex = HdfsUtil.path(output, FileUtil.getFilename(sourceIndex));
 			HdfsUtil.put(sourceIndex, targetIndex);
 			chunk.setIndexFilename(targetIndex);
-			writer.write(chunk.serialize());
 
 		}
-		reader.close();
-		writer.close();
+
+		// manifest with hdfs locations is the input of the job
+		manifest.write(HdfsUtil.create(newChunkFile));
 
 		ChunkFileConverterResult result = new ChunkFileConverterResult();
 		result.filename = newChunkFile;
 		result.needsPhasing = !phased;
+		for (VcfChunk chunk : manifest.getChunks()) {
+			result.cost += chunk.getCost();
+			result.chunks.add(chunk);
+		}
 		return result;
 
 	}
 
+	private int getInt(PreferenceStore store, String key) {
+		String value = store.getString(key);
+		return value != null ? Integer.parseInt(value) : 0;
+	}
+
+	private double getDouble(PreferenceStore store, String key, double defaultValue) {
+		String value = store.getString(key);
+		return value != null ? Double.parseDouble(value) : defaultValue;
+	}
+
 	private String resolvePattern(String pattern, String chr) {
-		return pattern.replaceAll("\\$chr", chr);
+		return ImputationJobMinimac3.resolvePattern(pattern, chr);
 	}
 
 }
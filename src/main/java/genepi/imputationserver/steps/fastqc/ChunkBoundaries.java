@@ -0,0 +1,155 @@
+package genepi.imputationserver.steps.fastqc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+public class ChunkBoundaries {
+
+	private int chunkSize;
+
+	private int[] starts = null;
+
+	private int[] ends = null;
+
+	// fixed chunks of size chunkSize starting at position 1
+	public ChunkBoundaries(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public ChunkBoundaries(int[] starts, int[] ends) {
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	/**
+	 * Cuts the covered region into chunks with a similar estimated imputation
+	 * cost (variants x samples x reference sites per bin). The cost budget of a
+	 * chunk is the average cost of a fixed chunk with size chunkSize, so the
+	 * number of chunks stays roughly the same, but dense regions are split and
+	 * sparse regions are merged. The length of a chunk is bounded by minSize and
+	 * maxSize.
+	 */
+	public static ChunkBoundaries createAdaptive(Map<Integer, Integer> variants, Map<Integer, Integer> reference,
+			int samples, int binSize, int chunkSize, int minSize, int maxSize) {
+
+		int firstBin = Collections.min(variants.keySet());
+		int lastBin = Collections.max(variants.keySet());
+
+		double[] costs = new double[lastBin - firstBin + 1];
+		double totalCost = 0;
+		for (int bin = firstBin; bin <= lastBin; bin++) {
+			Integer variantsInBin = variants.get(bin);
+			Integer referenceInBin = reference.get(bin);
+			double cost = 0;
+			if (variantsInBin != null) {
+				cost = variantsInBin * (double) Math.max(samples, 1)
+						* Math.max(referenceInBin != null ? referenceInBin : 0, 1);
+			}
+			costs[bin - firstBin] = cost;
+			totalCost += cost;
+		}
+
+		double budget = totalCost * chunkSize / ((double) costs.length * binSize);
+
+		int minBins = Math.max(minSize / binSize, 1);
+		int maxBins = Math.max(maxSize / binSize, minBins);
+
+		List<Integer> chunkStarts = new Vector<Integer>();
+		List<Integer> chunkEnds = new Vector<Integer>();
+
+		int startBin = firstBin;
+		double cost = 0;
+
+		for (int bin = firstBin; bin <= lastBin; bin++) {
+			cost += costs[bin - firstBin];
+			int length = bin - startBin + 1;
+			if ((length >= minBins && cost >= budget) || length >= maxBins) {
+				chunkStarts.add(getStart(startBin, firstBin, binSize));
+				chunkEnds.add((bin + 1) * binSize);
+				startBin = bin + 1;
+				cost = 0;
+			}
+		}
+
+		// remaining bins: extend last chunk if too small, otherwise new chunk
+		if (startBin <= lastBin) {
+			int length = lastBin - startBin + 1;
+			int last = chunkEnds.size() - 1;
+			if (length < minBins && last >= 0
+					&& ((lastBin + 1) * binSize - chunkStarts.get(last) + 1) <= maxBins * binSize) {
+				chunkEnds.set(last, (lastBin + 1) * binSize);
+			} else {
+				chunkStarts.add(getStart(startBin, firstBin, binSize));
+				chunkEnds.add((lastBin + 1) * binSize);
+			}
+		}
+
+		int[] starts = new int[chunkStarts.size()];
+		int[] ends = new int[chunkEnds.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = chunkStarts.get(i);
+			ends[i] = chunkEnds.get(i);
+		}
+
+		return new ChunkBoundaries(starts, ends);
+
+	}
+
+	// bins start at bin * binSize, the first chunk has to contain the first
+	// position of its bin. Other chunks start after the end of the previous
+	// chunk.
+	private static int getStart(int startBin, int firstBin, int binSize) {
+		if (startBin == firstBin) {
+			return Math.max(startBin * binSize, 1);
+		}
+		return startBin * binSize + 1;
+	}
+
+	public int getChunkNumber(int position) {
+
+		if (starts == null) {
+			int chunkNumber = position / chunkSize;
+			if (position % chunkSize == 0) {
+				chunkNumber = chunkNumber - 1;
+			}
+			return chunkNumber;
+		}
+
+		int index = Arrays.binarySearch(starts, position);
+		if (index < 0) {
+			// insertion point - 1 is the last chunk starting before position
+			index = -index - 2;
+		}
+		return Math.max(index, 0);
+
+	}
+
+	public boolean hasChunk(int chunkNumber) {
+		if (starts == null) {
+			return chunkNumber >= 0;
+		}
+		return chunkNumber >= 0 && chunkNumber < starts.length;
+	}
+
+	public int getStart(int chunkNumber) {
+		if (starts == null) {
+			return chunkNumber * chunkSize + 1;
+		}
+		return starts[chunkNumber];
+	}
+
+	public int getEnd(int chunkNumber) {
+		if (starts == null) {
+			return getStart(chunkNumber) + chunkSize - 1;
+		}
+		return ends[chunkNumber];
+	}
+
+	public boolean isAdaptive() {
+		return starts != null;
+	}
+
+}
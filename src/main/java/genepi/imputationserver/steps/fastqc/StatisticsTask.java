@@ -12,6 +12,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import genepi.imputationserver.steps.fastqc.legend.LegendEntry;
 import genepi.imputationserver.steps.fastqc.legend.LegendFileReader;
 import genepi.imputationserver.steps.vcf.BGzipLineWriter;
+import genepi.imputationserver.steps.vcf.ChunkManifest;
 import genepi.imputationserver.steps.vcf.FastVCFFileReader;
 import genepi.imputationserver.steps.vcf.MinimalVariantContext;
 import genepi.imputationserver.steps.vcf.VcfChunk;
@@ -55,6 +56,10 @@ public class StatisticsTask implements ITask {
 	// input variables
 	private String population;
 	private int chunkSize;
+	private boolean adaptiveChunks = false;
+	private int minChunkSize;
+	private int maxChunkSize;
+	private boolean mergeChunks = false;
 	private int phasingWindow;
 	private String[] vcfFilenames;
 	private LineWriter excludedSnpsWriter;
@@ -91,6 +96,7 @@ public class StatisticsTask implements ITask {
 	int removedChunksSnps;
 	int removedChunksOverlap;
 	int removedChunksCallRate;
+	int mergedChunks;
 
 	@Override
 	public String getName() {
@@ -194,38 +200,47 @@ public class StatisticsTask implements ITask {
 			}
 		}
 
-		LineWriter metafileWriter = new LineWriter(FileUtil.path(chunkFileDir, contig));
+		ChunkManifest manifest = new ChunkManifest();
 		LegendFileReader legendReader = getReader(myvcfFile.getChromosome());
 
 		int samples = myvcfFile.getNoSamples();
 
+		ChunkBoundaries boundaries = createBoundaries(myvcfFile, legendReader);
+
 		while (vcfReader.next()) {
 			MinimalVariantContext snp = vcfReader.getVariantContext();
-			int chunkNumber = snp.getStart() / chunkSize;
-			if (snp.getStart() % chunkSize == 0) {
-				chunkNumber = chunkNumber - 1;
-			}
+			int chunkNumber = boundaries.getChunkNumber(snp.getStart());
 
 			// init current chunk only once
 			if (chunks.get(chunkNumber) == null) {
-				int chunkStart = chunkNumber * chunkSize + 1;
-				int chunkEnd = chunkStart + chunkSize - 1;
+				int chunkStart = boundaries.getStart(chunkNumber);
+				int chunkEnd = boundaries.getEnd(chunkNumber);
 				VcfChunk chunk = initChunk(contig, chunkStart, chunkEnd, myvcfFile.isPhased(), header);
 				chunks.put(chunkNumber, chunk);
 			}
 
+			// is in the extended start of the next chunk(s)? small adaptive
+			// chunks can be shorter than the phasing window
 			int nextChunkNumber = chunkNumber + 1;
-			int nextChunkStart = nextChunkNumber * chunkSize + 1;
-			int extendedStart = nextChunkStart - phasingWindow;
-
-			// is in the extended start of the next chunk?
-			if (extendedStart >= 1 && snp.getStart() >= extendedStart) {
-				if (chunks.get(nextChunkNumber) == null) {
-					int nextChunkEnd = nextChunkStart + chunkSize - 1;
+			while (boundaries.hasChunk(nextChunkNumber)) {
+				int nextChunkStart = boundaries.getStart(nextChunkNumber);
+				int extendedStart = nextChunkStart - phasingWindow;
+				if (snp.getStart() < extendedStart) {
+					break;
+				}
+				if (extendedStart >= 1 && chunks.get(nextChunkNumber) == null) {
+					int nextChunkEnd = boundaries.getEnd(nextChunkNumber);
 					VcfChunk nextChunk = initChunk(contig, nextChunkStart, nextChunkEnd, myvcfFile.isPhased(),
 							vcfReader.getFileHeader());
 					chunks.put(nextChunkNumber, nextChunk);
 				}
+				nextChunkNumber++;
+			}
+
+			// all sites of the previous chunk are known: merge it into the
+			// current chunk if it would be excluded
+			if (mergeChunks) {
+				mergeWeakChunk(chunks, chunkNumber, boundaries.getEnd(chunkNumber), snp.getStart());
 			}
 
 			// load reference snp
@@ -238,7 +253,7 @@ public class StatisticsTask implements ITask {
 				} else {
 					// close open chunks
 					openChunk.vcfChunkWriter.close();
-					chunkSummary(openChunk, metafileWriter, excludedChunkWriter);
+					chunkSummary(openChunk, legendReader, manifest, excludedChunkWriter);
 					chunks.values().remove(openChunk);
 				}
 			}
@@ -252,7 +267,7 @@ public class StatisticsTask implements ITask {
 			openChunk.vcfChunkWriter.close();
 			if (openChunk.lastPos >= openChunk.getStart()) {
 				// System.out.println("Chunks " + open);
-				chunkSummary(openChunk, metafileWriter, excludedChunkWriter);
+				chunkSummary(openChunk, legendReader, manifest, excludedChunkWriter);
 			} else {
 				new File(openChunk.getVcfFilename()).delete();
 				new File(openChunk.getIndexFilename()).delete();
@@ -260,7 +275,48 @@ public class StatisticsTask implements ITask {
 			}
 		}
 
-		metafileWriter.close();
+		manifest.write(FileUtil.path(chunkFileDir, contig));
+
+	}
+
+	private void mergeWeakChunk(Map<Integer, VcfChunk> chunks, int chunkNumber, int chunkEnd, int position) {
+
+		VcfChunk weakChunk = chunks.get(chunkNumber - 1);
+		if (weakChunk == null || position <= weakChunk.getEnd() || !isWeak(weakChunk)) {
+			return;
+		}
+
+		if (chunkEnd - weakChunk.getStart() + 1 > maxChunkSize) {
+			return;
+		}
+
+		// current chunk contains only overlapping sites that are already in
+		// the weak chunk
+		VcfChunk chunk = chunks.get(chunkNumber);
+		chunk.vcfChunkWriter.close();
+		new File(chunk.getVcfFilename()).delete();
+		overallChunks--;
+
+		weakChunk.setEnd(chunkEnd);
+		chunks.remove(chunkNumber - 1);
+		chunks.put(chunkNumber, weakChunk);
+		mergedChunks++;
+
+	}
+
+	private boolean isWeak(VcfChunk chunk) {
+		double overlap = chunk.foundInLegendChunk / (double) (chunk.foundInLegendChunk + chunk.notFoundInLegendChunk);
+		return overlap < OVERLAP || chunk.foundInLegendChunk < MIN_SNPS || chunk.validSnpsChunk < MIN_SNPS;
+	}
+
+	private ChunkBoundaries createBoundaries(VcfFile vcfFile, LegendFileReader legendReader) {
+
+		if (!adaptiveChunks || vcfFile.getDensity() == null || vcfFile.getDensity().isEmpty()) {
+			return new ChunkBoundaries(chunkSize);
+		}
+
+		return ChunkBoundaries.createAdaptive(vcfFile.getDensity(), legendReader.getDensity(VcfFile.DENSITY_BIN_SIZE),
+				vcfFile.getNoSamples(), VcfFile.DENSITY_BIN_SIZE, chunkSize, minChunkSize, maxChunkSize);
 
 	}
 
@@ -268,9 +324,7 @@ public class StatisticsTask implements ITask {
 			throws IOException {
 		overallChunks++;
 
-		String chunkName = null;
-
-		chunkName = FileUtil.path(chunksDir, "chunk_" + chr + "_" + chunkStart + "_" + chunkEnd + ".vcf.gz");
+		String chunkName = getChunkName(chr, chunkStart, chunkEnd);
 
 		// init chunk
 		VcfChunk chunk = new VcfChunk();
@@ -292,6 +346,10 @@ public class StatisticsTask implements ITask {
 
 	}
 
+	private String getChunkName(String chr, int chunkStart, int chunkEnd) {
+		return FileUtil.path(chunksDir, "chunk_" + chr + "_" + chunkStart + "_" + chunkEnd + ".vcf.gz");
+	}
+
 	private void processLine(MinimalVariantContext snp, LegendEntry refSnp, int samples, BGzipLineWriter vcfWriter,
 			VcfChunk chunk, LineWriter mafWriter, LineWriter excludedSnpsWriter, LineWriter typedOnlyWriter)
 			throws IOException, InterruptedException {
@@ -566,8 +624,16 @@ public class StatisticsTask implements ITask {
 		}
 	}
 
-	private void chunkSummary(VcfChunk chunk, LineWriter metafileWriter, LineWriter excludedChunkWriter)
-			throws IOException {
+	private void chunkSummary(VcfChunk chunk, LegendFileReader legendReader, ChunkManifest manifest,
+			LineWriter excludedChunkWriter) throws IOException {
+
+		// merged chunks are renamed to their final region
+		String chunkName = getChunkName(chunk.getChromosome(), chunk.getStart(), chunk.getEnd());
+		if (!chunkName.equals(chunk.getVcfFilename())) {
+			new File(chunk.getVcfFilename()).renameTo(new File(chunkName));
+			chunk.setVcfFilename(chunkName);
+			chunk.setIndexFilename(chunkName + TabixUtils.STANDARD_INDEX_EXTENSION);
+		}
 
 		// this checks if enough SNPs are included in each sample
 		boolean lowSampleCallRate = false;
@@ -598,7 +664,11 @@ public class StatisticsTask implements ITask {
 			// update chunk
 			chunk.setSnps(chunk.overallSnpsChunk);
 			chunk.setInReference(chunk.foundInLegendChunk);
-			metafileWriter.write(chunk.serialize());
+			chunk.setReferenceSites(legendReader.countSites(chunk.getStart(), chunk.getEnd()));
+			chunk.setSamples(chunk.snpsPerSampleCount.length);
+			chunk.setVcfSize(new File(chunk.getVcfFilename()).length());
+			chunk.setChecksum(chunk.vcfChunkWriter.getChecksum());
+			manifest.add(chunk);
 
 		} else {
 
@@ -851,6 +921,22 @@ public class StatisticsTask implements ITask {
 		this.chunkSize = chunkSize;
 	}
 
+	public void setAdaptiveChunks(boolean adaptiveChunks) {
+		this.adaptiveChunks = adaptiveChunks;
+	}
+
+	public void setMinChunkSize(int minChunkSize) {
+		this.minChunkSize = minChunkSize;
+	}
+
+	public void setMaxChunkSize(int maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	public void setMergeChunks(boolean mergeChunks) {
+		this.mergeChunks = mergeChunks;
+	}
+
 	public void setPhasingWindow(int phasingWindow) {
 		this.phasingWindow = phasingWindow;
 	}
@@ -959,6 +1045,10 @@ public class StatisticsTask implements ITask {
 		return removedChunksCallRate;
 	}
 
+	public int getMergedChunks() {
+		return mergedChunks;
+	}
+
 	public int getOverallChunks() {
 		return overallChunks;
 	}
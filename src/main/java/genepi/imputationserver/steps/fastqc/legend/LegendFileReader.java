@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -21,6 +22,9 @@ public class LegendFileReader extends AbstractLineReader<String> {
 
 	private Set<Integer> duplicates = new HashSet<Integer>();
 
+	// sorted positions, created on demand
+	private int[] positions = null;
+
 	private String line;
 
 	private int oldOffset = 0;
@@ -105,6 +109,36 @@ public class LegendFileReader extends AbstractLineReader<String> {
 		close();
 	}
 
+	// number of reference sites in the region, available after createIndex
+	public int countSites(int start, int end) {
+		if (positions == null) {
+			positions = new int[index.size()];
+			int i = 0;
+			for (int position : index.keySet()) {
+				positions[i++] = position;
+			}
+			Arrays.sort(positions);
+		}
+		return lowerBound(positions, end + 1) - lowerBound(positions, start);
+	}
+
+	// index of the first position >= value
+	private static int lowerBound(int[] positions, int value) {
+		int index = Arrays.binarySearch(positions, value);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	// number of reference sites per bin, available after createIndex
+	public Map<Integer, Integer> getDensity(int binSize) {
+		Map<Integer, Integer> density = new HashMap<Integer, Integer>();
+		for (int position : index.keySet()) {
+			int bin = position / binSize;
+			Integer sites = density.get(bin);
+			density.put(bin, sites == null ? 1 : sites + 1);
+		}
+		return density;
+	}
+
 	@Override
 	public String get() {
 		return line;
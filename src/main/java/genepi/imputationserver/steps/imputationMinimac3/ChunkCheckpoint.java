@@ -0,0 +1,150 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+/**
+ * Keeps copies of the hdfs outputs of imputed chunks, so a failed job can be
+ * resumed without imputing its chunks again. The outputs of a job are temp
+ * files and deleted with the failed job, so each committed chunk folder (see
+ * {@link ChunkCommitter}) is copied into the checkpoint folder of the user
+ * and job, keyed by the checksum of the chunk, the reference panel and all
+ * imputation parameters. Only a job started in resume mode reads the
+ * checkpoints of the given earlier job of the same user.
+ */
+public class ChunkCheckpoint {
+
+	public static final String CHECKPOINT_FOLDER = "minimac.checkpoint";
+
+	// checkpoints of older jobs are deleted
+	public static final String CHECKPOINT_DAYS = "minimac.checkpoint.days";
+
+	public static final int DEFAULT_DAYS = 7;
+
+	public static final String USER = "MINIMAC_CHECKPOINT_USER";
+
+	public static final String JOB = "MINIMAC_CHECKPOINT_JOB";
+
+	public static final String RESUME_JOB = "MINIMAC_CHECKPOINT_RESUME_JOB";
+
+	private String folder;
+
+	private String user;
+
+	private String job;
+
+	private String resumeJob = null;
+
+	public ChunkCheckpoint(String folder, String user, String job) {
+		this.folder = folder;
+		this.user = user;
+		this.job = job;
+	}
+
+	// job of the same user whose outputs are reused
+	public void setResumeJob(String resumeJob) {
+		this.resumeJob = resumeJob;
+	}
+
+	public String getKey(VcfChunk chunk, String refPanel, String parameters) {
+		return PanelCache.getKey(chunk.getId() + ":" + chunk.getChecksum() + ":" + chunk.getVcfSize() + ":" + refPanel
+				+ ":" + parameters);
+	}
+
+	/**
+	 * Copies the checkpoint of the resumed job to the given folder, which is
+	 * then committed by the caller. Returns false if not in resume mode or no
+	 * checkpoint exists.
+	 */
+	public boolean restore(String key, String target) throws IOException {
+
+		if (resumeJob == null) {
+			return false;
+		}
+
+		String checkpoint = HdfsUtil.path(getFolder(folder, user, resumeJob), key);
+		if (!HdfsUtil.exists(checkpoint)) {
+			return false;
+		}
+
+		HdfsUtil.delete(target);
+		copy(checkpoint, target);
+
+		return true;
+
+	}
+
+	// a failed resumed job can be resumed again, restored chunks are saved too
+	public void save(String key, String chunkFolder) throws IOException {
+
+		String checkpoint = HdfsUtil.path(getFolder(folder, user, job), key);
+		String temp = checkpoint + ".tmp";
+		HdfsUtil.delete(temp);
+		copy(chunkFolder, temp);
+
+		// readers never see an incomplete checkpoint
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		HdfsUtil.delete(checkpoint);
+		if (!fileSystem.rename(new Path(temp), new Path(checkpoint))) {
+			throw new IOException("Saving checkpoint " + checkpoint + " failed.");
+		}
+
+	}
+
+	private static void copy(String source, String target) throws IOException {
+		Configuration configuration = HdfsUtil.getConfiguration();
+		FileSystem fileSystem = FileSystem.get(configuration);
+		if (!FileUtil.copy(fileSystem, new Path(source), fileSystem, new Path(target), false, configuration)) {
+			throw new IOException("Copying " + source + " to " + target + " failed.");
+		}
+	}
+
+	// deletes all checkpoints of a job
+	public static void delete(String folder, String user, String job) throws IOException {
+		HdfsUtil.delete(getFolder(folder, user, job));
+	}
+
+	// deletes the checkpoints of all jobs not updated for the given days
+	public static int cleanup(String folder, int days) throws IOException {
+
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		Path root = new Path(folder);
+		if (!fileSystem.exists(root)) {
+			return 0;
+		}
+
+		long limit = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+		int deleted = 0;
+		for (FileStatus userFolder : fileSystem.listStatus(root)) {
+			if (!userFolder.isDirectory()) {
+				continue;
+			}
+			for (FileStatus jobFolder : fileSystem.listStatus(userFolder.getPath())) {
+				if (jobFolder.getModificationTime() < limit) {
+					fileSystem.delete(jobFolder.getPath(), true);
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+
+	}
+
+	// user and job are part of the path, no other user can resume a job
+	static String getFolder(String folder, String user, String job) {
+		return HdfsUtil.path(HdfsUtil.path(folder, escape(user)), escape(job));
+	}
+
+	private static String escape(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_").replaceAll("^\\.+", "_");
+	}
+
+}
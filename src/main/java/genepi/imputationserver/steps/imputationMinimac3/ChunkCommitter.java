@@ -0,0 +1,93 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+
+import genepi.hadoop.HdfsUtil;
+
+/**
+ * Commits the outputs of a chunk. Every attempt writes into its own folder,
+ * which is renamed into the chunk folder of the output with one rename. The
+ * rename fails if the chunk folder exists, so the first attempt wins and all
+ * files of a chunk come from the same attempt.
+ */
+public class ChunkCommitter {
+
+	public static final String ATTEMPTS_FOLDER = "_attempts";
+
+	public static String getChunkFolder(String output, String chunk) {
+		return HdfsUtil.path(output, chunk);
+	}
+
+	public static String getAttemptFolder(String output, String chunk, String attempt) {
+		return HdfsUtil.path(HdfsUtil.path(HdfsUtil.path(output, ATTEMPTS_FOLDER), attempt), chunk);
+	}
+
+	public static boolean isCommitted(String output, String chunk) throws IOException {
+		return HdfsUtil.exists(getChunkFolder(output, chunk));
+	}
+
+	/**
+	 * Renames the attempt folder to the chunk folder. Returns false and
+	 * deletes the attempt folder if an other attempt was faster.
+	 */
+	public static boolean commit(String attemptFolder, String chunkFolder) throws IOException {
+
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		FileContext fileContext = FileContext.getFileContext(HdfsUtil.getConfiguration());
+
+		Path source = new Path(attemptFolder);
+		Path target = new Path(chunkFolder);
+
+		fileSystem.mkdirs(target.getParent());
+
+		// FileSystem.rename would move the folder into an existing target
+		try {
+			fileContext.rename(source, target, Options.Rename.NONE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			fileSystem.delete(source, true);
+			return false;
+		}
+
+	}
+
+	// deletes folders of failed or duplicate attempts
+	public static void cleanup(String output) throws IOException {
+		HdfsUtil.delete(HdfsUtil.path(output, ATTEMPTS_FOLDER));
+	}
+
+	/**
+	 * Returns all files with the given extension in the chunk folders of the
+	 * output, sorted by chunk.
+	 */
+	public static List<String> findFiles(String output, String extension) throws IOException {
+
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+
+		List<String> files = new Vector<String>();
+		for (FileStatus folder : fileSystem.listStatus(new Path(output))) {
+			if (!folder.isDirectory() || folder.getPath().getName().startsWith("_")) {
+				continue;
+			}
+			for (FileStatus file : fileSystem.listStatus(folder.getPath())) {
+				if (!file.isDirectory() && file.getPath().getName().endsWith(extension)) {
+					files.add(file.getPath().toString());
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+
+	}
+
+}
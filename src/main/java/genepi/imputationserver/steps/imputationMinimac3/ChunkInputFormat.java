@@ -0,0 +1,246 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import genepi.imputationserver.steps.vcf.ChunkManifest;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+/**
+ * Reads chunk manifests and packs their chunks into splits with a similar
+ * estimated cost (see {@link VcfChunk#getCost()}). Each split costs at least
+ * the min cost of a task, so small chunks do not pay the setup of a map task
+ * (jvm, distributed cache) each, and a job has at most the max number of
+ * tasks. Without a configured max, the map slots of the cluster are shared
+ * by the concurrent jobs of the workflow.
+ */
+public class ChunkInputFormat extends InputFormat<LongWritable, VcfChunk> {
+
+	// max number of chunks per map task, 0 = no limit
+	public static final String CHUNKS_PER_TASK = "minimac.chunks.per.task";
+
+	// packs chunks into splits, otherwise one chunk per split
+	public static final String PACK_CHUNKS = "minimac.chunks.pack";
+
+	// min estimated cost of a map task
+	public static final String MIN_TASK_COST = "minimac.task.cost.min";
+
+	// e.g. 5 chunks with 200000 reference sites and 100 samples
+	public static final long DEFAULT_MIN_TASK_COST = 100000000L;
+
+	// max number of map tasks per job, 0 = map slots / concurrent jobs
+	public static final String MAX_TASKS = "minimac.tasks.max";
+
+	// jobs of the workflow sharing the map slots, set by the step
+	public static final String CONCURRENT_JOBS = "minimac.jobs.concurrent";
+
+	@Override
+	public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+
+		Configuration configuration = context.getConfiguration();
+
+		List<VcfChunk> chunks = new Vector<VcfChunk>();
+		for (Path path : FileInputFormat.getInputPaths(context)) {
+			FileSystem fileSystem = path.getFileSystem(configuration);
+			for (FileStatus status : fileSystem.listStatus(path)) {
+				if (!status.isDirectory()) {
+					ChunkManifest manifest = ChunkManifest.read(fileSystem.open(status.getPath()));
+					chunks.addAll(manifest.getChunks());
+				}
+			}
+		}
+
+		// prefer nodes that already hold the reference panel
+		String hostsFolder = configuration.get(PanelCache.HOSTS_FOLDER);
+		String refPanel = configuration.get(ImputationJobMinimac3.REF_PANEL_HDFS);
+
+		List<InputSplit> splits = new Vector<InputSplit>();
+		for (ChunkSplit split : pack(chunks, configuration)) {
+			if (hostsFolder != null && refPanel != null) {
+				String chromosome = split.getChunks().get(0).getChromosome();
+				String hdfsPath = ImputationJobMinimac3.resolvePattern(refPanel, chromosome);
+				split.setLocations(PanelCache.getHosts(hostsFolder, hdfsPath));
+			}
+			splits.add(split);
+		}
+		return splits;
+
+	}
+
+	/**
+	 * Packs chunks with the settings of the job configuration, also used to
+	 * get the number of map tasks before the job is submitted.
+	 */
+	public static List<ChunkSplit> pack(List<VcfChunk> chunks, Configuration configuration) {
+
+		int chunksPerTask = configuration.getInt(CHUNKS_PER_TASK, 0);
+		if (!configuration.getBoolean(PACK_CHUNKS, true)) {
+			chunksPerTask = 1;
+		}
+
+		long minTaskCost = configuration.getLong(MIN_TASK_COST, DEFAULT_MIN_TASK_COST);
+
+		int maxTasks = configuration.getInt(MAX_TASKS, 0);
+		if (maxTasks <= 0) {
+			maxTasks = getMaxTasks(getMapSlots(configuration), configuration.getInt(CONCURRENT_JOBS, 1));
+		}
+
+		return pack(chunks, chunksPerTask, minTaskCost, maxTasks);
+
+	}
+
+	// map slots of the cluster, 1 if the jobtracker is not available
+	private static int getMapSlots(Configuration configuration) {
+		try {
+			JobClient client = new JobClient(new JobConf(configuration));
+			ClusterStatus status = client.getClusterStatus();
+			client.close();
+			return status.getMaxMapTasks();
+		} catch (IOException e) {
+			return 1;
+		}
+	}
+
+	public static int getMaxTasks(int slots, int concurrentJobs) {
+		return Math.max(slots / Math.max(concurrentJobs, 1), 1);
+	}
+
+	/**
+	 * Packs chunks into splits, longest processing time first: the number of
+	 * splits is the total cost divided by the min cost of a task, at most
+	 * maxTasks, and every chunk is added to the cheapest split. Chunks that
+	 * cost more than the others together run alone. chunksPerTask limits the
+	 * chunks of a split (0 = no limit) and can exceed maxTasks.
+	 */
+	public static List<ChunkSplit> pack(List<VcfChunk> chunks, int chunksPerTask, long minTaskCost, int maxTasks) {
+
+		List<VcfChunk> sortedChunks = new Vector<VcfChunk>(chunks);
+		Collections.sort(sortedChunks, new Comparator<VcfChunk>() {
+			@Override
+			public int compare(VcfChunk a, VcfChunk b) {
+				return Long.compare(b.getCost(), a.getCost());
+			}
+		});
+
+		List<ChunkSplit> splits = new Vector<ChunkSplit>();
+		if (sortedChunks.isEmpty()) {
+			return splits;
+		}
+
+		long totalCost = 0;
+		for (VcfChunk chunk : sortedChunks) {
+			totalCost += chunk.getCost();
+		}
+
+		long tasks = sortedChunks.size();
+		if (minTaskCost > 0) {
+			tasks = Math.min(tasks, Math.max((totalCost + minTaskCost - 1) / minTaskCost, 1));
+		}
+		tasks = Math.min(tasks, Math.max(maxTasks, 1));
+		if (chunksPerTask > 0) {
+			tasks = Math.max(tasks, (sortedChunks.size() + chunksPerTask - 1) / chunksPerTask);
+		}
+
+		for (int i = 0; i < tasks; i++) {
+			splits.add(new ChunkSplit());
+		}
+
+		for (VcfChunk chunk : sortedChunks) {
+			ChunkSplit bestSplit = null;
+			for (ChunkSplit split : splits) {
+				if (chunksPerTask > 0 && split.getChunks().size() >= chunksPerTask) {
+					continue;
+				}
+				if (bestSplit == null || split.getCost() < bestSplit.getCost()
+						|| (split.getCost() == bestSplit.getCost()
+								&& split.getChunks().size() < bestSplit.getChunks().size())) {
+					bestSplit = split;
+				}
+			}
+			bestSplit.add(chunk);
+		}
+
+		// longest processing time first
+		Collections.sort(splits, new Comparator<ChunkSplit>() {
+			@Override
+			public int compare(ChunkSplit a, ChunkSplit b) {
+				return Long.compare(b.getCost(), a.getCost());
+			}
+		});
+
+		return splits;
+
+	}
+
+	@Override
+	public RecordReader<LongWritable, VcfChunk> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		return new ChunkRecordReader();
+	}
+
+	static class ChunkRecordReader extends RecordReader<LongWritable, VcfChunk> {
+
+		private ChunkSplit split;
+
+		private int index = -1;
+
+		private long processedCost = 0;
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+			this.split = (ChunkSplit) split;
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			if (index >= 0 && index < split.getChunks().size()) {
+				processedCost += getCurrentValue().getCost();
+			}
+			index++;
+			return index < split.getChunks().size();
+		}
+
+		@Override
+		public LongWritable getCurrentKey() throws IOException, InterruptedException {
+			return new LongWritable(index);
+		}
+
+		@Override
+		public VcfChunk getCurrentValue() throws IOException, InterruptedException {
+			return split.getChunks().get(index);
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			if (split.getCost() == 0) {
+				return index / (float) Math.max(split.getChunks().size(), 1);
+			}
+			return processedCost / (float) split.getCost();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+		}
+
+	}
+
+}
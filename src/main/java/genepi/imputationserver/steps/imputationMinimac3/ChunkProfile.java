@@ -0,0 +1,123 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+public class ChunkProfile {
+
+	public static final String COUNTER_GROUP = "Imputation Phases";
+
+	public static final String EXTENSION = ".profile";
+
+	public enum Phase {
+		DOWNLOAD, PREPARE, PHASING, IMPUTATION, SPLIT, UPLOAD
+	}
+
+	private String chunk;
+
+	private long[] times = new long[Phase.values().length];
+
+	private long downloadBytes = 0;
+
+	private long uploadBytes = 0;
+
+	private int chunks = 1;
+
+	public ChunkProfile() {
+
+	}
+
+	public ChunkProfile(String line) {
+		String[] tiles = line.split("\t");
+
+		chunk = tiles[0];
+		for (Phase phase : Phase.values()) {
+			times[phase.ordinal()] = Long.parseLong(tiles[phase.ordinal() + 1]);
+		}
+		downloadBytes = Long.parseLong(tiles[times.length + 1]);
+		uploadBytes = Long.parseLong(tiles[times.length + 2]);
+	}
+
+	public String getChunk() {
+		return chunk;
+	}
+
+	public void setChunk(String chunk) {
+		this.chunk = chunk;
+	}
+
+	public void addTime(Phase phase, long time) {
+		times[phase.ordinal()] += time;
+	}
+
+	public long getTime(Phase phase) {
+		return times[phase.ordinal()];
+	}
+
+	public long getTotalTime() {
+		long total = 0;
+		for (long time : times) {
+			total += time;
+		}
+		return total;
+	}
+
+	public Phase getDominatingPhase() {
+		Phase result = Phase.DOWNLOAD;
+		for (Phase phase : Phase.values()) {
+			if (getTime(phase) > getTime(result)) {
+				result = phase;
+			}
+		}
+		return result;
+	}
+
+	public long getDownloadBytes() {
+		return downloadBytes;
+	}
+
+	public void addDownloadBytes(long bytes) {
+		this.downloadBytes += bytes;
+	}
+
+	public long getUploadBytes() {
+		return uploadBytes;
+	}
+
+	public void addUploadBytes(long bytes) {
+		this.uploadBytes += bytes;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	// sums up the profile of an other chunk (e.g. per chromosome)
+	public void add(ChunkProfile profile) {
+		for (Phase phase : Phase.values()) {
+			addTime(phase, profile.getTime(phase));
+		}
+		downloadBytes += profile.getDownloadBytes();
+		uploadBytes += profile.getUploadBytes();
+		chunks += profile.getChunks();
+	}
+
+	public String serialize() {
+		String line = chunk;
+		for (long time : times) {
+			line += "\t" + time;
+		}
+		line += "\t" + downloadBytes + "\t" + uploadBytes;
+		return line;
+	}
+
+	public String toString() {
+		String text = "";
+		for (Phase phase : Phase.values()) {
+			if (!text.isEmpty()) {
+				text += ", ";
+			}
+			text += phase.name().toLowerCase() + " " + (getTime(phase) / 1000) + " sec";
+		}
+		text += " (downloaded " + downloadBytes + " bytes, uploaded " + uploadBytes + " bytes)";
+		return text;
+	}
+
+}
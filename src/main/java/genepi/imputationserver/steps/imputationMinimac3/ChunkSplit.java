@@ -0,0 +1,79 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+public class ChunkSplit extends InputSplit implements Writable {
+
+	private List<VcfChunk> chunks = new Vector<VcfChunk>();
+
+	private long cost = 0;
+
+	private String[] locations = new String[0];
+
+	public ChunkSplit() {
+
+	}
+
+	public void add(VcfChunk chunk) {
+		chunks.add(chunk);
+		cost += chunk.getCost();
+	}
+
+	public List<VcfChunk> getChunks() {
+		return chunks;
+	}
+
+	public long getCost() {
+		return cost;
+	}
+
+	// the estimated cost is used as length, hadoop starts longest splits first
+	@Override
+	public long getLength() throws IOException, InterruptedException {
+		return cost;
+	}
+
+	@Override
+	public String[] getLocations() throws IOException, InterruptedException {
+		return locations;
+	}
+
+	// nodes that prefer this split, not serialized
+	public void setLocations(String[] locations) {
+		this.locations = locations;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(chunks.size());
+		for (VcfChunk chunk : chunks) {
+			chunk.write(out);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		chunks.clear();
+		cost = 0;
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			VcfChunk chunk = new VcfChunk();
+			chunk.readFields(in);
+			add(chunk);
+		}
+	}
+
+	public String toString() {
+		return chunks.size() + " chunk(s), cost " + cost;
+	}
+
+}
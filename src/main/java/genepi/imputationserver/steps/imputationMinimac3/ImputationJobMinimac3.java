@@ -4,16 +4,17 @@ import genepi.hadoop.CacheStore;
 import genepi.hadoop.HadoopJob;
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.log.LogCollector;
+import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.io.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 
 public class ImputationJobMinimac3 extends HadoopJob {
 
@@ -49,6 +50,8 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	public static final String BUILD = "MINIMAC_BUILD";
 
+	public static final String GENOME_WIDE = "MINIMAC_GENOME_WIDE";
+
 	public static final String DATA_FOLDER = "minimac-data-3";
 
 	private String refPanelHdfs;
@@ -71,6 +74,8 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	private String refPanelEagleHDFS;
 
+	private List<String> chromosomes = null;
+
 	public ImputationJobMinimac3(String name, Log log, String queue) {
 		super(name, log);
 		set("mapred.task.timeout", "720000000");
@@ -89,10 +94,8 @@ public class ImputationJobMinimac3 extends HadoopJob {
 	@Override
 	public void setupJob(Job job) {
 
-		NLineInputFormat.setNumLinesPerSplit(job, 1);
-
 		job.setMapperClass(ImputationMapperMinimac3.class);
-		job.setInputFormatClass(NLineInputFormat.class);
+		job.setInputFormatClass(ChunkInputFormat.class);
 
 		job.setMapOutputKeyClass(Text.class);
 		job.setMapOutputValueClass(Text.class);
@@ -107,13 +110,25 @@ public class ImputationJobMinimac3 extends HadoopJob {
 		// installs and distributed all binaries
 		distribute(FileUtil.path(folder, "bin"), DATA_FOLDER, cache);
 
+		// panels are loaded by the mappers into the node-local panel cache
+		boolean panelCache = getConfiguration().get(PanelCache.CACHE_FOLDER) != null;
+
 		// distributed refpanels
-		if (HdfsUtil.exists(refPanelHdfs)) {
-			log.info("Add Minimac reference panel  " + refPanelHdfs + " to distributed cache...");
-			cache.addFile(refPanelHdfs);
-		} else {
-			log.error("Minimac reference panel " + refPanelHdfs + " not found.");
-			throw new IOException("Minimac reference panel " + refPanelHdfs + " not found.");
+		for (String refPanel : resolvePattern(refPanelHdfs)) {
+			if (panelCache) {
+				if (!HdfsUtil.exists(refPanel)) {
+					throw new IOException("Minimac reference panel " + refPanel + " not found.");
+				}
+				log.info("Minimac reference panel " + refPanel + " is loaded into panel cache.");
+				continue;
+			}
+			if (HdfsUtil.exists(refPanel)) {
+				log.info("Add Minimac reference panel  " + refPanel + " to distributed cache...");
+				cache.addFile(refPanel);
+			} else {
+				log.error("Minimac reference panel " + refPanel + " not found.");
+				throw new IOException("Minimac reference panel " + refPanel + " not found.");
+			}
 		}
 
 		// add minimac map file to cache
@@ -163,13 +178,19 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 			// add Eagle Refpanel File for this chromosome to cache
 			if (phasing.equals("eagle") && refPanelEagleHDFS != null) {
-				if (!HdfsUtil.exists(refPanelEagleHDFS)) {
-					throw new IOException("Eagle Reference Panel " + refPanelEagleHDFS + " not found.");
+				for (String refPanelEagle : resolvePattern(refPanelEagleHDFS)) {
+					if (!HdfsUtil.exists(refPanelEagle)) {
+						throw new IOException("Eagle Reference Panel " + refPanelEagle + " not found.");
+					}
+					if (panelCache) {
+						log.info("Eagle reference " + refPanelEagle + " is loaded into panel cache.");
+						continue;
+					}
+					log.info("Add Eagle reference  " + refPanelEagle + " do distributed cache...");
+					cache.addFile(refPanelEagle);
+					log.info("Add Eagle reference  index " + refPanelEagle + ".csi to distributed cache...");
+					cache.addFile(refPanelEagle + ".csi");
 				}
-				log.info("Add Eagle reference  " + refPanelEagleHDFS + " do distributed cache...");
-				cache.addFile(refPanelEagleHDFS);
-				log.info("Add Eagle reference  index " + refPanelEagleHDFS + ".csi to distributed cache...");
-				cache.addFile(refPanelEagleHDFS + ".csi");
 			}
 		} else {
 			log.info("No map files added to distributed cache. Input data is phased.");
@@ -177,6 +198,23 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	}
 
+	// one file per chromosome in genome-wide jobs, otherwise the file itself
+	protected List<String> resolvePattern(String pattern) {
+		List<String> files = new Vector<String>();
+		if (chromosomes == null) {
+			files.add(pattern);
+		} else {
+			for (String chromosome : chromosomes) {
+				files.add(resolvePattern(pattern, chromosome));
+			}
+		}
+		return files;
+	}
+
+	public static String resolvePattern(String pattern, String chr) {
+		return pattern.replaceAll("\\$chr", chr);
+	}
+
 	public void setFolder(String folder) {
 		this.folder = folder;
 	}
@@ -300,4 +338,29 @@ public class ImputationJobMinimac3 extends HadoopJob {
 		set(BUILD, build);
 	}
 
+	// imputes all chromosomes in one job, panels are patterns with $chr
+	public void setChromosomes(List<String> chromosomes) {
+		this.chromosomes = chromosomes;
+		set(GENOME_WIDE, true);
+	}
+
+	// jobs of the workflow sharing the map slots of the cluster
+	public void setConcurrentJobs(int jobs) {
+		getConfiguration().setInt(ChunkInputFormat.CONCURRENT_JOBS, jobs);
+	}
+
+	// number of map tasks the chunks are packed into
+	public int getTasks(List<VcfChunk> chunks) {
+		return ChunkInputFormat.pack(chunks, getConfiguration()).size();
+	}
+
+	// checkpoints are written per user and job, resumeJob can be null
+	public void setCheckpoint(String user, String job, String resumeJob) {
+		set(ChunkCheckpoint.USER, user);
+		set(ChunkCheckpoint.JOB, job);
+		if (resumeJob != null) {
+			set(ChunkCheckpoint.RESUME_JOB, resumeJob);
+		}
+	}
+
 }
\ No newline at end of file
@@ -1,9 +1,13 @@
 package genepi.imputationserver.steps.imputationMinimac3;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -12,14 +16,16 @@ import genepi.hadoop.CacheStore;
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.ParameterStore;
 import genepi.hadoop.PreferenceStore;
+import genepi.hadoop.io.HdfsLineWriter;
 import genepi.hadoop.log.Log;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkProfile.Phase;
 import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.imputationserver.steps.vcf.VcfChunkOutput;
+import genepi.imputationserver.util.BgzfPartIndex;
 import genepi.imputationserver.util.FileMerger;
-import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
 import genepi.io.FileUtil;
 
-public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, Text> {
+public class ImputationMapperMinimac3 extends Mapper<LongWritable, VcfChunk, Text, Text> {
 
 	private ImputationPipelineMinimac3 pipeline;
 
@@ -57,6 +63,26 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 	private boolean debugging;
 
+	private boolean genomeWide;
+
+	private String refPanelPattern;
+
+	private String refEaglePattern;
+
+	private CacheStore cache;
+
+	private PanelCache panelCache = null;
+
+	private ChunkCheckpoint checkpoint = null;
+
+	private String refPanelHdfs;
+
+	private String checkpointParameters;
+
+	private String attempt;
+
+	private long splitCost = 0;
+
 	private Log log;
 
 	protected void setup(Context context) throws IOException, InterruptedException {
@@ -65,6 +91,12 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 		log = new Log(context);
 
+		// outputs are written into a folder of this attempt first
+		attempt = context.getTaskAttemptID().toString();
+		if (context.getInputSplit() instanceof ChunkSplit) {
+			splitCost = ((ChunkSplit) context.getInputSplit()).getCost();
+		}
+
 		// get parameters
 		ParameterStore parameters = new ParameterStore(context);
 		mapShapeITPattern = parameters.get(ImputationJobMinimac3.MAP_SHAPEIT_PATTERN);
@@ -83,11 +115,40 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		String hdfsRefEagle = parameters.get(ImputationJobMinimac3.REF_PANEL_EAGLE_HDFS);
 
 		String minimacBin = parameters.get(ImputationJobMinimac3.MINIMAC_BIN);
+		genomeWide = "true".equals(parameters.get(ImputationJobMinimac3.GENOME_WIDE));
+
+		// node-local panel cache, shared by all tasks on this node
+		PreferenceStore store = new PreferenceStore(context.getConfiguration());
+		if (store.getString(PanelCache.CACHE_FOLDER) != null) {
+			long quota = PanelCache.DEFAULT_QUOTA;
+			if (store.getString(PanelCache.CACHE_QUOTA) != null) {
+				quota = Long.parseLong(store.getString(PanelCache.CACHE_QUOTA));
+			}
+			panelCache = new PanelCache(store.getString(PanelCache.CACHE_FOLDER), quota);
+			panelCache.setHostsFolder(store.getString(PanelCache.HOSTS_FOLDER));
+		}
+
+		// outputs of earlier runs
+		if (store.getString(ChunkCheckpoint.CHECKPOINT_FOLDER) != null
+				&& parameters.get(ChunkCheckpoint.JOB) != null) {
+			checkpoint = new ChunkCheckpoint(store.getString(ChunkCheckpoint.CHECKPOINT_FOLDER),
+					parameters.get(ChunkCheckpoint.USER), parameters.get(ChunkCheckpoint.JOB));
+			checkpoint.setResumeJob(parameters.get(ChunkCheckpoint.RESUME_JOB));
+		}
+		refPanelHdfs = hdfsPath;
+		checkpointParameters = phasing + ":" + rounds + ":" + window + ":" + population + ":" + build + ":" + minimacBin + ":"
+				+ store.getString("phasing.window");
 
 		// get cached files
-		CacheStore cache = new CacheStore(context.getConfiguration());
-		String referencePanel = FileUtil.getFilename(hdfsPath);
-		refFilename = cache.getFile(referencePanel);
+		cache = new CacheStore(context.getConfiguration());
+		if (genomeWide) {
+			// panels are resolved per chunk
+			refPanelPattern = hdfsPath;
+			refEaglePattern = hdfsRefEagle;
+			hdfsRefEagle = null;
+		} else {
+			refFilename = getPanel(hdfsPath);
+		}
 
 		if (hdfsPathMinimacMap != null) {
 			System.out.println("Minimac map file hdfs: " + hdfsPathMinimacMap);
@@ -112,8 +173,8 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 			mapEagleFilename = cache.getFile(mapEagle);
 		}
 		if (hdfsRefEagle != null) {
-			refEagleFilename = cache.getFile(FileUtil.getFilename(hdfsRefEagle));
-			refEagleIndexFilename = cache.getFile(FileUtil.getFilename(hdfsRefEagle + ".csi"));
+			refEagleFilename = getPanel(hdfsRefEagle);
+			refEagleIndexFilename = getPanel(hdfsRefEagle + ".csi");
 		}
 
 		String minimacCommand = cache.getFile(minimacBin);
@@ -122,10 +183,8 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		String vcfCookerCommand = cache.getFile("vcfCooker");
 		String shapeItCommand = cache.getFile("shapeit");
 		String eagleCommand = cache.getFile("eagle");
-		String tabixCommand = cache.getFile("tabix");
 
 		// create temp directory
-		PreferenceStore store = new PreferenceStore(context.getConfiguration());
 		folder = store.getString("minimac.tmp");
 		folder = FileUtil.path(folder, context.getTaskAttemptID().toString());
 		boolean created = FileUtil.createDirectory(folder);
@@ -159,7 +218,6 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		pipeline.setVcfCookerCommand(vcfCookerCommand);
 		pipeline.setShapeItCommand(shapeItCommand);
 		pipeline.setEagleCommand(eagleCommand);
-		pipeline.setTabixCommand(tabixCommand);
 		pipeline.setHapiUrPreprocessCommand(hapiUrPreprocessCommand);
 		pipeline.setPhasingWindow(phasingWindow);
 		pipeline.setBuild(build);
@@ -174,23 +232,68 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 	protected void cleanup(Context context) throws IOException, InterruptedException {
 		// delete temp directory
 		log.close();
+		if (panelCache != null) {
+			panelCache.close();
+		}
 		FileUtil.deleteDirectory(folder);
 		System.out.println("Delete temp folder.");
 	}
 
-	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+	public void map(LongWritable key, VcfChunk chunk, Context context) throws IOException, InterruptedException {
 
 		try {
 
-			if (value.toString() == null || value.toString().isEmpty()) {
-				return;
+			VcfChunkOutput outputChunk = new VcfChunkOutput(chunk, folder);
+
+			ChunkProfile profile = new ChunkProfile();
+			profile.setChunk(chunk.getId());
+
+			setStatus(context, chunk, Phase.DOWNLOAD);
+			long start = System.currentTimeMillis();
+			if (genomeWide) {
+				resolvePanels(chunk.getChromosome());
 			}
 
-			VcfChunk chunk = new VcfChunk(value.toString());
+			// genome-wide jobs write to one folder per chromosome
+			String output = this.output;
+			if (genomeWide) {
+				output = HdfsUtil.path(output, chunk.getChromosome());
+			}
 
-			VcfChunkOutput outputChunk = new VcfChunkOutput(chunk, folder);
+			// all files of a chunk are committed with one rename
+			String chunkFolder = ChunkCommitter.getChunkFolder(output, chunk.toString());
+			String attemptFolder = ChunkCommitter.getAttemptFolder(output, chunk.toString(), attempt);
+
+			// e.g. by a speculative attempt of the same task
+			if (ChunkCommitter.isCommitted(output, chunk.toString())) {
+				log.info("Outputs of chunk " + chunk + " already committed by an other attempt.");
+				context.getCounter(ChunkProfile.COUNTER_GROUP, "Duplicate outputs").increment(1);
+				return;
+			}
+
+			// reuse outputs of an earlier run
+			String checkpointKey = null;
+			if (checkpoint != null) {
+				String refPanel = ImputationJobMinimac3.resolvePattern(refPanelHdfs, chunk.getChromosome());
+				checkpointKey = checkpoint.getKey(chunk, refPanel, checkpointParameters);
+				if (checkpoint.restore(checkpointKey, attemptFolder)) {
+					if (ChunkCommitter.commit(attemptFolder, chunkFolder)) {
+						checkpoint.save(checkpointKey, chunkFolder);
+					}
+					log.info("Imputation for chunk " + chunk + " restored from checkpoint.");
+					context.getCounter(ChunkProfile.COUNTER_GROUP, "Restored chunks").increment(1);
+					return;
+				}
+			}
 
-			HdfsUtil.get(chunk.getVcfFilename(), outputChunk.getVcfFilename());
+			LocalStaging.get(chunk.getVcfFilename(), outputChunk.getVcfFilename());
+			// eagle reuses the tabix index of the quality control
+			if (!chunk.isPhased() && "eagle".equals(phasing) && chunk.getIndexFilename() != null
+					&& HdfsUtil.exists(chunk.getIndexFilename())) {
+				LocalStaging.get(chunk.getIndexFilename(), outputChunk.getIndexFilename());
+			}
+			profile.addTime(Phase.DOWNLOAD, System.currentTimeMillis() - start);
+			profile.addDownloadBytes(new File(outputChunk.getVcfFilename()).length());
 
 			pipeline.setRefFilename(refFilename);
 			pipeline.setMapMinimac(mapMinimacFilename);
@@ -202,7 +305,9 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 			pipeline.setRefEagleFilename(refEagleFilename);
 			pipeline.setPhasing(phasing);
 			pipeline.setPopulation(population);
+			pipeline.setProfile(profile);
 
+			setStatus(context, chunk, Phase.IMPUTATION);
 			boolean succesful = pipeline.execute(chunk, outputChunk);
 			if (succesful) {
 				log.info("Imputation for chunk " + chunk + " successful.");
@@ -211,23 +316,69 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 				return;
 			}
 
+			setStatus(context, chunk, Phase.UPLOAD);
+			HdfsUtil.delete(attemptFolder);
+			String infoFilename = HdfsUtil.path(attemptFolder, chunk + ".info");
+			String dataFilename = HdfsUtil.path(attemptFolder, chunk + ".data.dose.vcf.gz");
+			String headerFilename = HdfsUtil.path(attemptFolder, chunk + ".header.dose.vcf.gz");
+			String indexFilename = dataFilename + BgzfPartIndex.EXTENSION;
+
 			// store info file
-			HdfsUtil.put(outputChunk.getInfoFilename(), HdfsUtil.path(output, chunk + ".info"));
+			start = System.currentTimeMillis();
+			HdfsUtil.put(outputChunk.getInfoFilename(), infoFilename);
+			profile.addTime(Phase.UPLOAD, System.currentTimeMillis() - start);
 
-			long start = System.currentTimeMillis();
+			start = System.currentTimeMillis();
 
 			// store vcf file (remove header)
-			BgzipSplitOutputStream outData = new BgzipSplitOutputStream(
-					HdfsUtil.create(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz")));
-
-			BgzipSplitOutputStream outHeader = new BgzipSplitOutputStream(
-					HdfsUtil.create(HdfsUtil.path(output, chunk + ".header.dose.vcf.gz")));
-
-			FileMerger.splitIntoHeaderAndData(outputChunk.getImputedVcfFilename(), outHeader, outData);
+			OutputStream outData = HdfsUtil.create(dataFilename);
+			OutputStream outHeader = HdfsUtil.create(headerFilename);
+			OutputStream outIndex = HdfsUtil.create(indexFilename);
+			boolean indexed = FileMerger.splitIntoHeaderAndData(outputChunk.getImputedVcfFilename(), outHeader,
+					outData, outIndex);
+			if (!indexed) {
+				outIndex.close();
+				HdfsUtil.delete(indexFilename);
+			}
 			long end = System.currentTimeMillis();
+			profile.addTime(Phase.SPLIT, end - start);
 
 			System.out.println("Time filter and put: " + (end - start) + " ms");
 
+			profile.addUploadBytes(getLength(infoFilename));
+			profile.addUploadBytes(getLength(dataFilename));
+			profile.addUploadBytes(getLength(headerFilename));
+
+			// publish phase timings as counters and store timing record
+			for (Phase phase : Phase.values()) {
+				context.getCounter(ChunkProfile.COUNTER_GROUP, phase.name() + " (ms)").increment(profile.getTime(phase));
+			}
+			context.getCounter(ChunkProfile.COUNTER_GROUP, "DOWNLOAD (bytes)").increment(profile.getDownloadBytes());
+			context.getCounter(ChunkProfile.COUNTER_GROUP, "UPLOAD (bytes)").increment(profile.getUploadBytes());
+
+			String profileFilename = HdfsUtil.path(attemptFolder, chunk + ChunkProfile.EXTENSION);
+			HdfsLineWriter profileWriter = new HdfsLineWriter(profileFilename);
+			profileWriter.write(profile.serialize());
+			profileWriter.close();
+
+			System.out.println("Profile: " + profile);
+
+			// outputs are deterministic: files of an other attempt are equal
+			if (!ChunkCommitter.commit(attemptFolder, chunkFolder)) {
+				log.info("Outputs of chunk " + chunk + " already committed by an other attempt.");
+				context.getCounter(ChunkProfile.COUNTER_GROUP, "Duplicate outputs").increment(1);
+			}
+
+			if (checkpoint != null) {
+				checkpoint.save(checkpointKey, chunkFolder);
+			}
+			setStatus(context, chunk, null);
+
+			// a task can process several chunks
+			if (!debugging) {
+				cleanupChunk(outputChunk);
+			}
+
 		} catch (Exception e) {
 			if (!debugging) {
 				System.out.println("Mapper Task failed.");
@@ -236,4 +387,55 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 			throw e;
 		}
 	}
+
+	// the straggler detector parses the cost of the split from the status
+	private void setStatus(Context context, VcfChunk chunk, Phase phase) {
+		context.setStatus(StragglerDetector.STATUS_COST + splitCost + "; " + chunk + ": "
+				+ (phase != null ? phase.name().toLowerCase() : "done"));
+	}
+
+	// from node-local panel cache or distributed cache
+	private String getPanel(String hdfsPath) throws IOException {
+		if (panelCache != null) {
+			return panelCache.get(hdfsPath);
+		}
+		return cache.getFile(FileUtil.getFilename(hdfsPath));
+	}
+
+	private void resolvePanels(String chromosome) throws IOException {
+
+		String hdfsPath = ImputationJobMinimac3.resolvePattern(refPanelPattern, chromosome);
+		refFilename = getPanel(hdfsPath);
+
+		if (refEaglePattern != null) {
+			String hdfsRefEagle = ImputationJobMinimac3.resolvePattern(refEaglePattern, chromosome);
+			String link = FileUtil.path(folder, "ref_" + chromosome + ".bcf");
+			if (!new File(link).exists()) {
+				// create symbolic link --> index file is in the same folder as data
+				String filename = getPanel(hdfsRefEagle);
+				String indexFilename = getPanel(hdfsRefEagle + ".csi");
+				Files.createSymbolicLink(Paths.get(link), Paths.get(filename));
+				Files.createSymbolicLink(Paths.get(link + ".csi"), Paths.get(indexFilename));
+			}
+			refEagleFilename = link;
+		}
+
+	}
+
+	private void cleanupChunk(VcfChunkOutput outputChunk) {
+		String prefix = FileUtil.getFilename(outputChunk.getPrefix());
+		File[] files = new File(folder).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private long getLength(String hdfsPath) throws IOException {
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		return fileSystem.getFileStatus(new Path(hdfsPath)).getLen();
+	}
 }
@@ -1,15 +1,15 @@
 package genepi.imputationserver.steps.imputationMinimac3;
 
 import genepi.hadoop.command.Command;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkProfile.Phase;
 import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.imputationserver.steps.vcf.VcfChunkOutput;
+import genepi.imputationserver.steps.vcf.VcfFileUtil;
 import genepi.imputationserver.util.GenomicTools;
 import genepi.io.FileUtil;
 import genepi.io.plink.MapFileReader;
 import genepi.io.plink.Snp;
-import genepi.io.text.LineReader;
 import genepi.io.text.LineWriter;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 import java.io.File;
 import java.io.IOException;
@@ -23,7 +23,6 @@ public class ImputationPipelineMinimac3 {
 	private String hapiUrPreprocessCommand;
 	private String shapeItCommand;
 	private String eagleCommand;
-	private String tabixCommand;
 	private String vcfCookerCommand;
 	private int minimacWindow;
 	private int phasingWindow;
@@ -46,6 +45,8 @@ public class ImputationPipelineMinimac3 {
 	private String phasing;
 	private String build = "hg19";
 
+	private ChunkProfile profile = new ChunkProfile();
+
 	public boolean execute(VcfChunk chunk, VcfChunkOutput output) throws InterruptedException, IOException {
 
 		System.out.println("Starting pipeline for chunk " + chunk + " [Phased: " + chunk.isPhased() + "]...");
@@ -63,11 +64,13 @@ public class ImputationPipelineMinimac3 {
 		// impute only for phased chromosomes
 		if (chunk.isPhased()) {
 
-			FileUtil.copy(output.getVcfFilename(), output.getPhasedVcfFilename());
+			LocalStaging.link(output.getVcfFilename(), output.getPhasedVcfFilename());
 
 			long time = System.currentTimeMillis();
 			boolean successful = imputeVCF(output);
-			time = (System.currentTimeMillis() - time) / 1000;
+			time = System.currentTimeMillis() - time;
+			profile.addTime(Phase.IMPUTATION, time);
+			time = time / 1000;
 
 			if (successful) {
 				System.out.println("  Minimac3 successful. [" + time + " sec]");
@@ -105,7 +108,9 @@ public class ImputationPipelineMinimac3 {
 				long time = System.currentTimeMillis();
 				boolean successful = vcfToBed(output);
 
-				time = (System.currentTimeMillis() - time) / 1000;
+				time = System.currentTimeMillis() - time;
+				profile.addTime(Phase.PREPARE, time);
+				time = time / 1000;
 
 				if (successful) {
 					System.out.println("  vcfCooker successful [" + time + " sec]");
@@ -138,7 +143,9 @@ public class ImputationPipelineMinimac3 {
 					}
 
 					successful = phaseWithHapiUr(chunk, output, mapfilePath);
-					time = (System.currentTimeMillis() - time) / 1000;
+					time = System.currentTimeMillis() - time;
+					profile.addTime(Phase.PHASING, time);
+					time = time / 1000;
 
 					if (successful) {
 						System.out.println("  HapiUR successful [" + time + " sec]");
@@ -161,7 +168,9 @@ public class ImputationPipelineMinimac3 {
 
 					time = System.currentTimeMillis();
 					successful = phaseWithShapeIt(chunk, output, mapfilePath);
-					time = (System.currentTimeMillis() - time) / 1000;
+					time = System.currentTimeMillis() - time;
+					profile.addTime(Phase.PHASING, time);
+					time = time / 1000;
 
 					if (successful) {
 						System.out.println("  ShapeIt successful. [" + time + " sec]");
@@ -175,7 +184,9 @@ public class ImputationPipelineMinimac3 {
 
 			long time = System.currentTimeMillis();
 			boolean successful = imputeVCF(output);
-			time = (System.currentTimeMillis() - time) / 1000;
+			time = System.currentTimeMillis() - time;
+			profile.addTime(Phase.IMPUTATION, time);
+			time = time / 1000;
 
 			if (successful) {
 				System.out.println("  Minimac3 successful.[" + time + " sec]");
@@ -332,41 +343,23 @@ public class ImputationPipelineMinimac3 {
 			return false;
 		}
 
-		// bgzip
+		// chunk and index are reused, bgzip and index only if needed
+		long time = System.currentTimeMillis();
+		String vcfFilename = output.getVcfFilename();
 		try {
-			boolean first = true;
-			LineReader reader = new LineReader(output.getVcfFilename());
-			BlockCompressedOutputStream out = new BlockCompressedOutputStream(output.getVcfFilename() + ".gz");
-			while (reader.next()) {
-				if (!first) {
-					out.write("\n".getBytes());
-				}
-				out.write(reader.get().getBytes());
-				first = false;
+			if (!VcfFileUtil.isBgzf(vcfFilename)) {
+				vcfFilename = output.getPrefix() + ".bgzf.vcf.gz";
+				VcfFileUtil.bgzip(output.getVcfFilename(), vcfFilename);
+				VcfFileUtil.createTabixIndex(vcfFilename);
+			} else if (!new File(output.getIndexFilename()).exists()) {
+				VcfFileUtil.createTabixIndex(vcfFilename);
 			}
-			reader.close();
-			out.close();
-
 		} catch (Exception e) {
-			System.out.println("my bgzip failed.");
+			System.out.println("Error during index creation.");
 			e.printStackTrace();
 			return false;
 		}
-
-		if (!new File(output.getVcfFilename() + ".gz").exists()) {
-			System.out.println("vcf.gz file not created!");
-			return false;
-		}
-
-		// create tabix index
-		Command tabix = new Command(tabixCommand);
-		tabix.setSilent(false);
-		tabix.setParams(output.getVcfFilename() + ".gz");
-		System.out.println("Command: " + tabix.getExecutedCommand());
-		if (tabix.execute() != 0) {
-			System.out.println("Error during index creation: " + tabix.getStdOut());
-			return false;
-		}
+		profile.addTime(Phase.PREPARE, System.currentTimeMillis() - time);
 
 		// start eagle
 		Command eagle = new Command(eagleCommand);
@@ -378,7 +371,7 @@ public class ImputationPipelineMinimac3 {
 		params.add("--vcfRef");
 		params.add(reference);
 		params.add("--vcfTarget");
-		params.add(output.getVcfFilename() + ".gz");
+		params.add(vcfFilename);
 		params.add("--geneticMapFile");
 		params.add(mapFilename);
 		params.add("--outPrefix");
@@ -396,7 +389,10 @@ public class ImputationPipelineMinimac3 {
 		eagle.saveStdOut(output.getPrefix() + ".eagle.out");
 		eagle.saveStdErr(output.getPrefix() + ".eagle.err");
 		System.out.println("Command: " + eagle.getExecutedCommand());
-		if (eagle.execute() != 0) {
+		time = System.currentTimeMillis();
+		int exitCode = eagle.execute();
+		profile.addTime(Phase.PHASING, System.currentTimeMillis() - time);
+		if (exitCode != 0) {
 			return false;
 		}
 
@@ -474,10 +470,6 @@ public class ImputationPipelineMinimac3 {
 		this.hapiUrPreprocessCommand = hapiUrPreprocessCommand;
 	}
 
-	public void setTabixCommand(String tabixCommand) {
-		this.tabixCommand = tabixCommand;
-	}
-
 	public void setRefFilename(String refFilename) {
 		this.refFilename = refFilename;
 	}
@@ -554,4 +546,8 @@ public class ImputationPipelineMinimac3 {
 		this.build = build;
 	}
 
+	public void setProfile(ChunkProfile profile) {
+		this.profile = profile;
+	}
+
 }
@@ -0,0 +1,53 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+import genepi.hadoop.HdfsUtil;
+
+/**
+ * Stages input files on the local disk of a mapper with as little disk I/O as
+ * possible: files are linked instead of copied whenever source and target are
+ * on the same local file system and downloads skip the local checksum files.
+ * Blocks stored on the same node are read directly from the datanode's disk
+ * if short-circuit reads (dfs.client.read.shortcircuit) are enabled in
+ * job.config.
+ */
+public class LocalStaging {
+
+	public static void get(String hdfsPath, String localPath) throws IOException {
+
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		Path source = new Path(hdfsPath);
+
+		// e.g. local mode: the file is already on this disk
+		if (fileSystem instanceof LocalFileSystem) {
+			link(fileSystem.makeQualified(source).toUri().getPath(), localPath);
+			return;
+		}
+
+		// raw local file system writes no .crc file
+		fileSystem.copyToLocalFile(false, source, new Path(localPath), true);
+
+	}
+
+	// hard link, copy if links are not supported (e.g. different devices)
+	public static void link(String source, String target) throws IOException {
+
+		new File(target).delete();
+		try {
+			Files.createLink(Paths.get(target), Paths.get(source));
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(Paths.get(source), Paths.get(target), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+	}
+
+}
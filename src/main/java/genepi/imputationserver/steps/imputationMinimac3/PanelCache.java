@@ -0,0 +1,299 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+
+/**
+ * Node-local cache for reference panels that is shared by all tasks, jobs
+ * and users on a node. Entries are keyed by hdfs path and modification time,
+ * so updated panels are downloaded again. Every task holds a shared lock on
+ * the entries it uses; entries are downloaded and evicted (least recently
+ * used first, until the quota is reached) under an exclusive lock.
+ */
+public class PanelCache {
+
+	public static final String CACHE_FOLDER = "minimac.panel.cache";
+
+	public static final String CACHE_QUOTA = "minimac.panel.cache.quota";
+
+	public static final String HOSTS_FOLDER = "minimac.panel.cache.hosts";
+
+	public static final long DEFAULT_QUOTA = 100L * 1024 * 1024 * 1024;
+
+	private static final String READY = ".ready";
+
+	private static final String SOURCE = ".source";
+
+	private String folder;
+
+	private long quota;
+
+	private String hostsFolder;
+
+	private Map<String, LockedEntry> entries = new HashMap<String, LockedEntry>();
+
+	public PanelCache(String folder, long quota) throws IOException {
+		this.folder = folder;
+		this.quota = quota;
+		if (!FileUtil.createDirectory(folder) && !new File(folder).isDirectory()) {
+			throw new IOException("Panel cache " + folder + " is not writable!");
+		}
+	}
+
+	// hdfs folder where nodes holding a panel are registered
+	public void setHostsFolder(String hostsFolder) {
+		this.hostsFolder = hostsFolder;
+	}
+
+	/**
+	 * Returns the local filename of the hdfs file and downloads it if needed.
+	 * The entry stays locked until close is called.
+	 */
+	public synchronized String get(String hdfsPath) throws IOException {
+
+		FileSystem fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+		FileStatus status = fileSystem.getFileStatus(new Path(hdfsPath));
+		String key = getKey(hdfsPath + ":" + status.getModificationTime());
+
+		String entryFolder = FileUtil.path(folder, key);
+		String filename = FileUtil.path(entryFolder, FileUtil.getFilename(hdfsPath));
+
+		LockedEntry entry = entries.get(key);
+		if (entry != null) {
+			return filename;
+		}
+
+		while (true) {
+
+			// fast path: entry exists, hold it with a shared lock
+			entry = lock(key, true);
+			if (new File(entryFolder, READY).exists()) {
+				break;
+			}
+			entry.release();
+
+			// download it with an exclusive lock
+			entry = lock(key, false);
+			if (!new File(entryFolder, READY).exists()) {
+				evict(status.getLen());
+				FileUtil.deleteDirectory(entryFolder);
+				FileUtil.createDirectory(entryFolder);
+				HdfsUtil.get(hdfsPath, filename + ".tmp");
+				new File(filename + ".tmp").renameTo(new File(filename));
+				LineWriter writer = new LineWriter(FileUtil.path(entryFolder, SOURCE));
+				writer.write(hdfsPath);
+				writer.close();
+				new File(entryFolder, READY).createNewFile();
+			}
+			entry.release();
+
+			// entry could be evicted before the shared lock is acquired
+		}
+
+		// least recently used
+		new File(entryFolder, READY).setLastModified(System.currentTimeMillis());
+		entries.put(key, entry);
+
+		registerHost(hdfsPath);
+
+		return filename;
+
+	}
+
+	// removes least recently used entries that are not in use
+	private void evict(long size) throws IOException {
+
+		File[] files = new File(folder).listFiles();
+		if (files == null) {
+			return;
+		}
+
+		List<File> candidates = new Vector<File>();
+		long used = 0;
+		for (File file : files) {
+			File ready = new File(file, READY);
+			if (file.isDirectory() && ready.exists()) {
+				candidates.add(file);
+				used += getSize(file);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(new File(a, READY).lastModified(), new File(b, READY).lastModified());
+			}
+		});
+
+		for (File candidate : candidates) {
+			if (used + size <= quota) {
+				break;
+			}
+			String key = candidate.getName();
+			if (entries.containsKey(key)) {
+				continue;
+			}
+			LockedEntry entry = tryLock(key);
+			if (entry != null) {
+				long candidateSize = getSize(candidate);
+				unregisterHost(candidate);
+				FileUtil.deleteDirectory(candidate.getAbsolutePath());
+				used -= candidateSize;
+				entry.release();
+			}
+		}
+
+	}
+
+	public synchronized void close() {
+		for (LockedEntry entry : entries.values()) {
+			entry.release();
+		}
+		entries.clear();
+	}
+
+	private LockedEntry lock(String key, boolean shared) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(FileUtil.path(folder, key + ".lock"), "rw");
+		FileLock lock = file.getChannel().lock(0, Long.MAX_VALUE, shared);
+		return new LockedEntry(file, lock);
+	}
+
+	private LockedEntry tryLock(String key) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(FileUtil.path(folder, key + ".lock"), "rw");
+		FileLock lock = null;
+		try {
+			lock = file.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			file.close();
+			return null;
+		}
+		return new LockedEntry(file, lock);
+	}
+
+	private void registerHost(String hdfsPath) {
+		if (hostsFolder == null) {
+			return;
+		}
+		try {
+			String marker = HdfsUtil.path(getHostsFolder(hostsFolder, hdfsPath), getHostname());
+			if (!HdfsUtil.exists(marker)) {
+				HdfsUtil.create(marker).close();
+			}
+		} catch (Exception e) {
+			System.out.println("Registering panel cache host failed: " + e.getMessage());
+		}
+	}
+
+	private void unregisterHost(File entryFolder) {
+		if (hostsFolder == null) {
+			return;
+		}
+		try {
+			LineReader reader = new LineReader(FileUtil.path(entryFolder.getAbsolutePath(), SOURCE));
+			if (reader.next()) {
+				HdfsUtil.delete(HdfsUtil.path(getHostsFolder(hostsFolder, reader.get()), getHostname()));
+			}
+			reader.close();
+		} catch (Exception e) {
+			System.out.println("Unregistering panel cache host failed: " + e.getMessage());
+		}
+	}
+
+	// nodes that hold the panel in their cache
+	public static String[] getHosts(String hostsFolder, String hdfsPath) {
+		try {
+			String hosts = getHostsFolder(hostsFolder, hdfsPath);
+			if (!HdfsUtil.exists(hosts)) {
+				return new String[0];
+			}
+			List<String> files = HdfsUtil.getFiles(hosts);
+			String[] result = new String[files.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = FileUtil.getFilename(files.get(i));
+			}
+			return result;
+		} catch (Exception e) {
+			return new String[0];
+		}
+	}
+
+	public static String getHostsFolder(String hostsFolder, String hdfsPath) {
+		return HdfsUtil.path(hostsFolder, getKey(hdfsPath));
+	}
+
+	private static String getHostname() throws IOException {
+		return InetAddress.getLocalHost().getHostName();
+	}
+
+	private static long getSize(File folder) {
+		long size = 0;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	static String getKey(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(value.getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder();
+			for (byte b : hash) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException | IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	class LockedEntry {
+
+		private RandomAccessFile file;
+
+		private FileLock lock;
+
+		public LockedEntry(RandomAccessFile file, FileLock lock) {
+			this.file = file;
+			this.lock = lock;
+		}
+
+		public void release() {
+			try {
+				lock.release();
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,193 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TIPStatus;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TaskReport;
+
+/**
+ * Finds map tasks running much longer than expected. The mapper reports the
+ * estimated cost of its split in the task status, the expected runtime is the
+ * cost multiplied by the median runtime per cost unit of all finished tasks.
+ * Attempts running longer than the relaunch factor are killed, Hadoop
+ * relaunches them and the first committed output wins (see
+ * {@link ChunkCommitter}).
+ */
+public class StragglerDetector {
+
+	public static final String STATUS_COST = "cost=";
+
+	// min number of finished tasks before runtimes are estimated
+	public static final int MIN_FINISHED_TASKS = 3;
+
+	private static final Pattern COST_PATTERN = Pattern.compile(STATUS_COST + "(\\d+)");
+
+	private JobClient client;
+
+	// running time / expected time
+	private double reportFactor = 3;
+
+	// 0 = never relaunch
+	private double relaunchFactor = 0;
+
+	private Set<String> reported = new HashSet<String>();
+
+	// tasks, not attempts
+	private Set<String> relaunched = new HashSet<String>();
+
+	public StragglerDetector(Configuration configuration) throws IOException {
+		client = new JobClient(new JobConf(configuration));
+	}
+
+	// without jobtracker, tasks are passed to check(List, long)
+	StragglerDetector() {
+
+	}
+
+	public void setReportFactor(double reportFactor) {
+		this.reportFactor = reportFactor;
+	}
+
+	public void setRelaunchFactor(double relaunchFactor) {
+		this.relaunchFactor = relaunchFactor;
+	}
+
+	/**
+	 * Checks all running tasks of a job, relaunches stragglers and returns a
+	 * message for each new straggler and relaunched attempt.
+	 */
+	public List<String> check(String jobId) throws IOException {
+
+		JobID id = JobID.forName(jobId);
+
+		List<Task> tasks = new Vector<Task>();
+		for (TaskReport report : client.getMapTaskReports(id)) {
+			Task task = new Task();
+			task.id = report.getTaskID().toString();
+			task.status = report.getState();
+			task.running = report.getCurrentStatus() == TIPStatus.RUNNING;
+			task.complete = report.getCurrentStatus() == TIPStatus.COMPLETE;
+			task.startTime = report.getStartTime();
+			task.finishTime = report.getFinishTime();
+			for (TaskAttemptID attempt : report.getRunningTaskAttempts()) {
+				task.attempts.add(attempt);
+			}
+			tasks.add(task);
+		}
+
+		List<String> messages = check(tasks, System.currentTimeMillis());
+
+		RunningJob job = null;
+		for (Task task : tasks) {
+			if (!task.relaunch) {
+				continue;
+			}
+			if (job == null) {
+				job = client.getJob(id);
+			}
+			for (TaskAttemptID attempt : task.attempts) {
+				// killed (not failed) attempts are relaunched
+				job.killTask(attempt, false);
+				messages.add("Attempt " + attempt + " killed and relaunched.");
+			}
+		}
+
+		return messages;
+
+	}
+
+	List<String> check(List<Task> tasks, long now) {
+
+		List<String> messages = new Vector<String>();
+
+		// runtime per cost unit of finished tasks
+		List<Double> rates = new Vector<Double>();
+		for (Task task : tasks) {
+			long cost = getCost(task.status);
+			if (task.complete && cost > 0) {
+				rates.add((task.finishTime - task.startTime) / (double) cost);
+			}
+		}
+		if (rates.size() < MIN_FINISHED_TASKS) {
+			return messages;
+		}
+		Collections.sort(rates);
+		double rate = rates.get(rates.size() / 2);
+
+		for (Task task : tasks) {
+
+			if (!task.running) {
+				continue;
+			}
+
+			long cost = getCost(task.status);
+			if (cost <= 0) {
+				continue;
+			}
+
+			double expected = Math.max(rate * cost, 1);
+			double factor = (now - task.startTime) / expected;
+
+			if (factor > reportFactor && reported.add(task.id)) {
+				messages.add("Task " + task.id + " runs " + String.format("%.1f", factor)
+						+ "x longer than expected (" + task.status + ").");
+			}
+
+			// the start time of a task is not reset by a relaunch: relaunch
+			// only once
+			if (relaunchFactor > 0 && factor > relaunchFactor && relaunched.add(task.id)) {
+				task.relaunch = true;
+			}
+
+		}
+
+		return messages;
+
+	}
+
+	public static long getCost(String status) {
+		if (status == null) {
+			return 0;
+		}
+		Matcher matcher = COST_PATTERN.matcher(status);
+		if (matcher.find()) {
+			return Long.parseLong(matcher.group(1));
+		}
+		return 0;
+	}
+
+	static class Task {
+
+		String id;
+
+		String status;
+
+		boolean running;
+
+		boolean complete;
+
+		long startTime;
+
+		long finishTime;
+
+		List<TaskAttemptID> attempts = new Vector<TaskAttemptID>();
+
+		// set by check
+		boolean relaunch = false;
+
+	}
+
+}
@@ -5,7 +5,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 
@@ -15,8 +16,12 @@ public class BGzipLineWriter {
 
 	private boolean first = true;
 
+	private CheckedOutputStream checkedStream;
+
 	public BGzipLineWriter(String filename) throws IOException {
-		bw = new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(new File(filename))));
+		File file = new File(filename);
+		checkedStream = new CheckedOutputStream(new FileOutputStream(file), new CRC32());
+		bw = new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(checkedStream, file)));
 		first = true;
 	}
 
@@ -34,4 +39,9 @@ public class BGzipLineWriter {
 		bw.close();
 	}
 
+	// crc32 of the compressed file, available after close
+	public long getChecksum() {
+		return checkedStream.getChecksum().getValue();
+	}
+
 }
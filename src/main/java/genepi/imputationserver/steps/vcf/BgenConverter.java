@@ -0,0 +1,375 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Converts a bgzipped minimac dosage part into BGEN v1.2 variant data blocks
+ * (layout 2, zlib compressed). Genotype probabilities are taken from the GP
+ * field and stored unphased with a fixed number of bits. Parts are converted
+ * independently, so chunks can be converted in parallel and concatenated
+ * (see {@link BgenFile}).
+ */
+public class BgenConverter {
+
+	public static final int BITS = 8;
+
+	private int bits = BITS;
+
+	private int samples;
+
+	private RsqFilter filter = null;
+
+	private int variants = 0;
+
+	// written bytes of the current part
+	private long offset = 0;
+
+	private ByteArrayOutputStream probabilities = new ByteArrayOutputStream();
+
+	private Deflater deflater = new Deflater();
+
+	public BgenConverter(int samples) {
+		this.samples = samples;
+	}
+
+	public void setBits(int bits) {
+		if (bits < 1 || bits > 32) {
+			throw new IllegalArgumentException("Bits must be between 1 and 32.");
+		}
+		this.bits = bits;
+	}
+
+	// only variants accepted by the filter are converted
+	public void setFilter(RsqFilter filter) {
+		this.filter = filter;
+	}
+
+	public int getVariants() {
+		return variants;
+	}
+
+	/**
+	 * Writes the variant blocks into out and one index line per variant
+	 * (chromosome, position, rsid, number of alleles, allele1, allele2, offset
+	 * in the part, size) into index. The input is closed, both output streams
+	 * stay open.
+	 */
+	public void convert(InputStream input, OutputStream out, OutputStream index) throws IOException {
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(input);
+
+		byte[] buffer = new byte[64 * 1024];
+		byte[] line = new byte[64 * 1024];
+		int length = 0;
+
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			int start = 0;
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') {
+					line = append(line, length, buffer, start, i - start);
+					length += i - start;
+					addLine(line, length, out, index);
+					length = 0;
+					start = i + 1;
+				}
+			}
+			line = append(line, length, buffer, start, read - start);
+			length += read - start;
+		}
+
+		if (length > 0) {
+			addLine(line, length, out, index);
+		}
+
+		in.close();
+		deflater.end();
+
+	}
+
+	private void addLine(byte[] line, int length, OutputStream out, OutputStream index) throws IOException {
+
+		if (length == 0 || line[0] == '#') {
+			return;
+		}
+
+		if (filter != null && !filter.accept(line, length)) {
+			return;
+		}
+
+		// first 9 columns
+		String[] tiles = new String[9];
+		int start = 0;
+		int column = 0;
+		int position = 0;
+		while (column < 9 && position <= length) {
+			if (position == length || line[position] == '\t') {
+				tiles[column++] = new String(line, start, position - start);
+				start = position + 1;
+			}
+			position++;
+		}
+		if (column < 9) {
+			throw new IOException("Invalid dosage line with " + column + " columns.");
+		}
+
+		String chromosome = tiles[0];
+		int pos = Integer.parseInt(tiles[1]);
+		String id = tiles[2];
+		String[] alleles = (tiles[3] + "," + tiles[4]).split(",");
+
+		int gpIndex = -1;
+		String[] format = tiles[8].split(":");
+		for (int i = 0; i < format.length; i++) {
+			if (format[i].equals("GP")) {
+				gpIndex = i;
+			}
+		}
+		if (gpIndex == -1) {
+			throw new IOException("Variant " + id + " has no GP field.");
+		}
+
+		byte[] data = encodeProbabilities(line, start, length, alleles.length, gpIndex, id);
+
+		// variant identifying data
+		ByteArrayOutputStream variant = new ByteArrayOutputStream();
+		writeString16(variant, id);
+		writeString16(variant, id);
+		writeString16(variant, chromosome);
+		writeInt(variant, pos);
+		writeShort(variant, alleles.length);
+		for (String allele : alleles) {
+			byte[] bytes = allele.getBytes();
+			writeInt(variant, bytes.length);
+			variant.write(bytes);
+		}
+
+		// genotype data block
+		byte[] compressed = compress(data);
+		writeInt(variant, compressed.length + 4);
+		writeInt(variant, data.length);
+		variant.write(compressed);
+
+		variant.writeTo(out);
+
+		index.write((chromosome + "\t" + pos + "\t" + id + "\t" + alleles.length + "\t" + alleles[0] + "\t"
+				+ alleles[1] + "\t" + offset + "\t" + variant.size() + "\n").getBytes());
+
+		offset += variant.size();
+		variants++;
+
+	}
+
+	private byte[] encodeProbabilities(byte[] line, int start, int length, int alleles, int gpIndex, String id)
+			throws IOException {
+
+		byte[] ploidy = new byte[samples];
+		int minPloidy = 2;
+		int maxPloidy = 0;
+
+		BitWriter values = new BitWriter(bits);
+		long max = (1L << bits) - 1;
+
+		int sample = 0;
+		int position = start;
+		while (position < length && sample < samples) {
+
+			int end = position;
+			while (end < length && line[end] != '\t') {
+				end++;
+			}
+
+			// gp field of the sample
+			int fieldStart = position;
+			int field = 0;
+			while (field < gpIndex && fieldStart < end) {
+				if (line[fieldStart] == ':') {
+					field++;
+				}
+				fieldStart++;
+			}
+			int fieldEnd = fieldStart;
+			while (fieldEnd < end && line[fieldEnd] != ':') {
+				fieldEnd++;
+			}
+
+			String gp = field == gpIndex ? new String(line, fieldStart, fieldEnd - fieldStart) : ".";
+
+			if (gp.equals(".") || gp.isEmpty()) {
+				// missing, diploid
+				ploidy[sample] = (byte) (0x80 | 2);
+				minPloidy = Math.min(minPloidy, 2);
+				maxPloidy = Math.max(maxPloidy, 2);
+				for (int i = 0; i < alleles * (alleles + 1) / 2 - 1; i++) {
+					values.write(0);
+				}
+			} else {
+				String[] tiles = gp.split(",");
+				double[] probabilities = new double[tiles.length];
+				for (int i = 0; i < tiles.length; i++) {
+					probabilities[i] = Double.parseDouble(tiles[i]);
+				}
+				// haploid samples (e.g. males on chrX) have one value per
+				// allele
+				int samplePloidy = tiles.length == alleles ? 1 : 2;
+				if (samplePloidy == 2 && tiles.length != alleles * (alleles + 1) / 2) {
+					throw new IOException("Variant " + id + " has invalid GP values.");
+				}
+				ploidy[sample] = (byte) samplePloidy;
+				minPloidy = Math.min(minPloidy, samplePloidy);
+				maxPloidy = Math.max(maxPloidy, samplePloidy);
+				long[] quantized = quantize(probabilities, max);
+				// last value is implied
+				for (int i = 0; i < quantized.length - 1; i++) {
+					values.write(quantized[i]);
+				}
+			}
+
+			sample++;
+			position = end + 1;
+
+		}
+
+		if (sample != samples) {
+			throw new IOException("Variant " + id + " has " + sample + " samples, expected " + samples + ".");
+		}
+
+		ByteArrayOutputStream data = probabilities;
+		data.reset();
+		writeInt(data, samples);
+		writeShort(data, alleles);
+		data.write(Math.min(minPloidy, maxPloidy));
+		data.write(maxPloidy);
+		data.write(ploidy);
+		// unphased
+		data.write(0);
+		data.write(bits);
+		values.writeTo(data);
+		return data.toByteArray();
+
+	}
+
+	/**
+	 * Rounds probabilities to integers with the given sum, as described in the
+	 * BGEN specification.
+	 */
+	static long[] quantize(double[] probabilities, long max) {
+
+		double sum = 0;
+		for (double probability : probabilities) {
+			sum += probability;
+		}
+
+		long[] result = new long[probabilities.length];
+		double[] fractions = new double[probabilities.length];
+		long total = 0;
+		for (int i = 0; i < probabilities.length; i++) {
+			double value = sum > 0 ? probabilities[i] / sum * max : 0;
+			result[i] = (long) Math.floor(value);
+			fractions[i] = value - result[i];
+			total += result[i];
+		}
+
+		// distribute the rest to the largest fractions
+		if (sum > 0) {
+			for (long rest = max - total; rest > 0; rest--) {
+				int largest = 0;
+				for (int i = 1; i < fractions.length; i++) {
+					if (fractions[i] > fractions[largest]) {
+						largest = i;
+					}
+				}
+				result[largest]++;
+				fractions[largest] = -1;
+			}
+		}
+
+		return result;
+
+	}
+
+	private byte[] compress(byte[] data) {
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+		byte[] buffer = new byte[64 * 1024];
+		while (!deflater.finished()) {
+			int size = deflater.deflate(buffer);
+			out.write(buffer, 0, size);
+		}
+		return out.toByteArray();
+	}
+
+	static void writeString16(OutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes();
+		if (bytes.length > 0xffff) {
+			throw new IOException("Value '" + value + "' is too long.");
+		}
+		writeShort(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static void writeShort(OutputStream out, int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >>> 8) & 0xff);
+	}
+
+	static void writeInt(OutputStream out, long value) throws IOException {
+		writeShort(out, (int) (value & 0xffff));
+		writeShort(out, (int) ((value >>> 16) & 0xffff));
+	}
+
+	private static byte[] append(byte[] line, int length, byte[] data, int offset, int count) {
+		if (length + count > line.length) {
+			byte[] larger = new byte[Math.max(line.length * 2, length + count)];
+			System.arraycopy(line, 0, larger, 0, length);
+			line = larger;
+		}
+		System.arraycopy(data, offset, line, length, count);
+		return line;
+	}
+
+	// packs values with the least significant bit first
+	static class BitWriter {
+
+		private int bits;
+
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private long current = 0;
+
+		private int size = 0;
+
+		BitWriter(int bits) {
+			this.bits = bits;
+		}
+
+		void write(long value) {
+			current |= value << size;
+			size += bits;
+			while (size >= 8) {
+				bytes.write((int) (current & 0xff));
+				current >>>= 8;
+				size -= 8;
+			}
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			if (size > 0) {
+				bytes.write((int) (current & 0xff));
+				current = 0;
+				size = 0;
+			}
+			bytes.writeTo(out);
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Vector;
+
+import genepi.io.text.LineReader;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Writes a BGEN v1.2 file from converted parts (see {@link BgenConverter}).
+ * The header needs the number of variants, so parts are converted first and
+ * then concatenated. The variant index has the columns of the Variant table
+ * of bgenix (.bgi) and can be imported into it.
+ */
+public class BgenFile {
+
+	public static final String EXTENSION = ".bgen";
+
+	public static final String INDEX_EXTENSION = ".bgen.idx";
+
+	// zlib compression, layout 2, sample identifiers
+	public static final long FLAGS = 1 | (2 << 2) | (1L << 31);
+
+	private OutputStream output;
+
+	private OutputStream index;
+
+	// bytes written so far
+	private long offset = 0;
+
+	public BgenFile(OutputStream output, OutputStream index) {
+		this.output = output;
+		this.index = index;
+	}
+
+	public void writeHeader(List<String> samples, long variants) throws IOException {
+
+		String free = "imputationserver";
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		BgenConverter.writeInt(header, 20 + free.length());
+		BgenConverter.writeInt(header, variants);
+		BgenConverter.writeInt(header, samples.size());
+		header.write("bgen".getBytes());
+		header.write(free.getBytes());
+		BgenConverter.writeInt(header, FLAGS);
+
+		ByteArrayOutputStream identifiers = new ByteArrayOutputStream();
+		for (String sample : samples) {
+			BgenConverter.writeString16(identifiers, sample);
+		}
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		// offset of the first variant block relative to byte 4
+		BgenConverter.writeInt(block, header.size() + identifiers.size() + 8);
+		header.writeTo(block);
+		BgenConverter.writeInt(block, identifiers.size() + 8);
+		BgenConverter.writeInt(block, samples.size());
+		identifiers.writeTo(block);
+
+		block.writeTo(output);
+		offset += block.size();
+
+		index.write("chromosome\tposition\trsid\tnumber_of_alleles\tallele1\tallele2\tfile_start_position\tsize_in_bytes\n"
+				.getBytes());
+
+	}
+
+	/**
+	 * Appends a converted part and shifts the offsets of its index lines.
+	 * Both input streams are closed.
+	 */
+	public void addPart(InputStream part, InputStream partIndex) throws IOException {
+
+		long partOffset = offset;
+
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = part.read(buffer)) > 0) {
+			output.write(buffer, 0, read);
+			offset += read;
+		}
+		part.close();
+
+		LineReader reader = new LineReader(partIndex);
+		while (reader.next()) {
+			String[] tiles = reader.get().split("\t");
+			tiles[6] = String.valueOf(Long.parseLong(tiles[6]) + partOffset);
+			StringBuilder line = new StringBuilder(tiles[0]);
+			for (int i = 1; i < tiles.length; i++) {
+				line.append("\t").append(tiles[i]);
+			}
+			line.append("\n");
+			index.write(line.toString().getBytes());
+		}
+		reader.close();
+
+	}
+
+	// the output streams stay open
+	public void finish() throws IOException {
+		output.flush();
+		index.flush();
+	}
+
+	/**
+	 * Returns the sample names of a bgzipped vcf header.
+	 */
+	public static List<String> readSamples(InputStream header) throws IOException {
+		BlockCompressedInputStream in = new BlockCompressedInputStream(header);
+		List<String> samples = new Vector<String>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("#CHROM")) {
+				String[] tiles = line.split("\t");
+				for (int i = 9; i < tiles.length; i++) {
+					samples.add(tiles[i]);
+				}
+				break;
+			}
+		}
+		in.close();
+		return samples;
+	}
+
+}
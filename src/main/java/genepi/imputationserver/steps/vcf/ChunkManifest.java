@@ -0,0 +1,91 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Binary list of all chunks of a contig. The file starts with a magic number
+ * and the format version, followed by the number of chunks and the chunks
+ * (see VcfChunk.write).
+ */
+public class ChunkManifest {
+
+	public static final int MAGIC = 0x43484e4b;
+
+	// version 2 stores the reference sites of each chunk
+	public static final int VERSION = 2;
+
+	private List<VcfChunk> chunks = new Vector<VcfChunk>();
+
+	public void add(VcfChunk chunk) {
+		chunks.add(chunk);
+	}
+
+	public List<VcfChunk> getChunks() {
+		return chunks;
+	}
+
+	public int size() {
+		return chunks.size();
+	}
+
+	public boolean isPhased() {
+		boolean phased = true;
+		for (VcfChunk chunk : chunks) {
+			phased = phased && chunk.isPhased();
+		}
+		return phased;
+	}
+
+	public void write(String filename) throws IOException {
+		write(new FileOutputStream(filename));
+	}
+
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(chunks.size());
+		for (VcfChunk chunk : chunks) {
+			chunk.write(out);
+		}
+		out.close();
+	}
+
+	public static ChunkManifest read(String filename) throws IOException {
+		return read(new FileInputStream(filename));
+	}
+
+	public static ChunkManifest read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("File is not a chunk manifest.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Chunk manifest version " + version + " is not supported.");
+			}
+			ChunkManifest manifest = new ChunkManifest();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				VcfChunk chunk = new VcfChunk();
+				chunk.readFields(in);
+				manifest.add(chunk);
+			}
+			return manifest;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -1,34 +1,165 @@
 package genepi.imputationserver.steps.vcf;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.LittleEndianOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.commons.compress.utils.IOUtils;
+import genepi.imputationserver.util.BgzfBlockReader;
+import genepi.imputationserver.util.BgzfPartIndex;
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
 
+/**
+ * Concatenates bgzipped vcf parts block by block. Every block is checked
+ * while copying. If all data parts come with a part index, the tabix index
+ * of the merged file is created from the shifted part indices without
+ * reading the merged file again.
+ */
 public class MergedVcfFile {
 
-	private FileOutputStream output;
+	private OutputStream output;
+
+	// compressed bytes written so far
+	private long offset = 0;
+
+	private TabixIndexCreator indexCreator = null;
 
 	public MergedVcfFile(String filename) throws FileNotFoundException {
 		output = new FileOutputStream(filename);
 	}
 
+	// e.g. an entry of a zip file
+	public MergedVcfFile(OutputStream output) {
+		this.output = output;
+	}
+
+	public void setIndexed(boolean indexed) {
+		indexCreator = indexed ? new TabixIndexCreator(TabixFormat.VCF) : null;
+	}
+
+	// e.g. the header, contains no records
 	public void addFile(InputStream input) throws IOException {
-		IOUtils.copy(input, output);
+		BgzfBlockReader reader = new BgzfBlockReader(input);
+		while (reader.next()) {
+			output.write(reader.getBlock(), 0, reader.getSize());
+			offset += reader.getSize();
+		}
+		reader.close();
+	}
+
+	/**
+	 * Appends a data part and its part index. Without index no tabix index is
+	 * created for the merged file.
+	 */
+	public void addFile(InputStream input, InputStream index) throws IOException {
+
+		long partOffset = offset;
+		addFile(input);
+
+		if (indexCreator == null) {
+			if (index != null) {
+				index.close();
+			}
+			return;
+		}
+
+		if (index == null) {
+			indexCreator = null;
+			return;
+		}
+
+		addIndex(BgzfPartIndex.read(index), partOffset);
+
+	}
+
+	/**
+	 * Appends the records of a data part that pass the filter. Kept records
+	 * are compressed again by the executor and the part index is created from
+	 * the written blocks.
+	 */
+	public void addFile(InputStream input, RsqFilter filter, ExecutorService executor, int maxPending)
+			throws IOException {
+
+		long partOffset = offset;
+
+		ParallelBgzfOutputStream part = new ParallelBgzfOutputStream(output, executor, maxPending);
+		part.setEofMarker(false);
+		BgzfPartIndex partIndex = null;
+		if (indexCreator != null) {
+			partIndex = new BgzfPartIndex();
+			part.setIndex(partIndex);
+		}
+
+		filter.filter(input, part);
 		input.close();
+		part.finish();
+		offset += part.getCompressedSize();
+
+		if (partIndex != null) {
+			addIndex(partIndex, partOffset);
+		}
+
 	}
 
-	public void close() throws IOException {
+	private void addIndex(BgzfPartIndex partIndex, long partOffset) {
+		try {
+			for (BgzfPartIndex.Entry entry : partIndex.getEntries()) {
+				if (entry.getChromosome() == null) {
+					continue;
+				}
+				SimpleFeature feature = new SimpleFeature(entry.getChromosome(), entry.getStart(), entry.getEnd());
+				indexCreator.addFeature(feature, entry.getVirtualOffset(partOffset));
+			}
+		} catch (IllegalArgumentException e) {
+			// parts are not sorted
+			indexCreator = null;
+		}
+	}
+
+	// writes the eof marker, the output stream stays open
+	public void finish() throws IOException {
 		output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		output.flush();
+	}
+
+	public void close() throws IOException {
+		finish();
 		output.close();
 	}
 
+	public boolean isIndexed() {
+		return indexCreator != null;
+	}
+
+	/**
+	 * Returns the bgzipped tabix index of the merged file.
+	 */
+	public byte[] getIndex() throws IOException {
+
+		if (indexCreator == null) {
+			return null;
+		}
+
+		// records end before the eof marker
+		TabixIndex index = (TabixIndex) indexCreator.finalizeIndex(offset << 16);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LittleEndianOutputStream out = new LittleEndianOutputStream(new BlockCompressedOutputStream(bytes, null));
+		index.write(out);
+		out.close();
+		return bytes.toByteArray();
+
+	}
+
 }
@@ -0,0 +1,133 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Removes records of a bgzipped minimac dosage file with R2 below a
+ * threshold. The R2 value is read from the INFO column, lines are not split
+ * into samples. Records without R2 (e.g. typed only) are kept.
+ */
+public class RsqFilter {
+
+	private float minRsq;
+
+	private long kept = 0;
+
+	private long removed = 0;
+
+	public RsqFilter(float minRsq) {
+		this.minRsq = minRsq;
+	}
+
+	public float getMinRsq() {
+		return minRsq;
+	}
+
+	public long getKept() {
+		return kept;
+	}
+
+	public long getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Writes all kept lines uncompressed into the output stream. Both streams
+	 * stay open.
+	 */
+	public void filter(InputStream input, OutputStream output) throws IOException {
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(input);
+
+		byte[] buffer = new byte[64 * 1024];
+		byte[] line = new byte[64 * 1024];
+		int length = 0;
+
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			int start = 0;
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') {
+					line = append(line, length, buffer, start, i - start + 1);
+					length += i - start + 1;
+					writeLine(line, length, output);
+					length = 0;
+					start = i + 1;
+				}
+			}
+			line = append(line, length, buffer, start, read - start);
+			length += read - start;
+		}
+
+		if (length > 0) {
+			line = append(line, length, new byte[] { '\n' }, 0, 1);
+			writeLine(line, length + 1, output);
+		}
+
+	}
+
+	private void writeLine(byte[] line, int length, OutputStream output) throws IOException {
+		if (line[0] == '#' || accept(line, length)) {
+			output.write(line, 0, length);
+			if (line[0] != '#') {
+				kept++;
+			}
+		} else {
+			removed++;
+		}
+	}
+
+	boolean accept(byte[] line, int length) {
+
+		// INFO is the 8th column
+		int start = 0;
+		int tabs = 0;
+		while (start < length && tabs < 7) {
+			if (line[start] == '\t') {
+				tabs++;
+			}
+			start++;
+		}
+		if (tabs < 7) {
+			return true;
+		}
+
+		int end = start;
+		while (end < length && line[end] != '\t' && line[end] != '\n') {
+			end++;
+		}
+
+		for (int i = start; i + 3 <= end; i++) {
+			if ((i == start || line[i - 1] == ';') && line[i] == 'R' && line[i + 1] == '2' && line[i + 2] == '=') {
+				int valueEnd = i + 3;
+				while (valueEnd < end && line[valueEnd] != ';') {
+					valueEnd++;
+				}
+				try {
+					float rsq = Float.parseFloat(new String(line, i + 3, valueEnd - i - 3));
+					return rsq >= minRsq;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+
+		return true;
+
+	}
+
+	private static byte[] append(byte[] line, int length, byte[] data, int offset, int count) {
+		if (length + count > line.length) {
+			byte[] larger = new byte[Math.max(line.length * 2, length + count)];
+			System.arraycopy(line, 0, larger, 0, length);
+			line = larger;
+		}
+		System.arraycopy(data, offset, line, length, count);
+		return line;
+	}
+
+}
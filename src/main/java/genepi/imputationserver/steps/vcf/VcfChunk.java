@@ -1,8 +1,13 @@
 package genepi.imputationserver.steps.vcf;
 
-import java.text.DecimalFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
-public class VcfChunk {
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+public class VcfChunk implements Writable {
 
 	private String chromosome;
 
@@ -16,12 +21,19 @@ public class VcfChunk {
 
 	private int end;
 
-	private DecimalFormat nf = new DecimalFormat("#0000000000");
-
 	private int snps = 0;
 
-	private int inReference = 0;;
-	
+	private int inReference = 0;
+
+	// sites of the reference panel in the chunk
+	private int referenceSites = 0;
+
+	private int samples = 0;
+
+	private long vcfSize = 0;
+
+	private long checksum = 0;
+
 	public VcfChunk() {
 
 	}
@@ -40,6 +52,16 @@ public class VcfChunk {
 			snps = Integer.parseInt(tiles[6]);
 			inReference = Integer.parseInt(tiles[7]);
 		}
+
+		if (tiles.length > 10) {
+			samples = Integer.parseInt(tiles[8]);
+			vcfSize = Long.parseLong(tiles[9]);
+			checksum = Long.parseLong(tiles[10]);
+		}
+
+		if (tiles.length > 11) {
+			referenceSites = Integer.parseInt(tiles[11]);
+		}
 	}
 
 	public String getChromosome() {
@@ -110,17 +132,87 @@ public class VcfChunk {
 		this.inReference = inReference;
 	}
 
+	public int getReferenceSites() {
+		return referenceSites;
+	}
+
+	public void setReferenceSites(int referenceSites) {
+		this.referenceSites = referenceSites;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	public void setSamples(int samples) {
+		this.samples = samples;
+	}
+
+	public long getVcfSize() {
+		return vcfSize;
+	}
+
+	public void setVcfSize(long vcfSize) {
+		this.vcfSize = vcfSize;
+	}
+
+	// crc32 of the compressed vcf file
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public void setChecksum(long checksum) {
+		this.checksum = checksum;
+	}
+
+	// estimated imputation cost, minimac imputes all reference sites of the
+	// chunk. Chunks without reference sites fall back to the study snps.
+	public long getCost() {
+		long sites = referenceSites > 0 ? referenceSites : snps;
+		return sites * Math.max(samples, 1);
+	}
 
 	public String serialize() {
 		return chromosome + "\t" + start + "\t" + end + "\t"
 				+ (phased ? "VCF-PHASED" : "VCF-UNPHASED") + "\t" + vcfFilename
-				+ "\t" + indexFilename + "\t" + snps + "\t" + inReference;
+				+ "\t" + indexFilename + "\t" + snps + "\t" + inReference + "\t" + samples + "\t" + vcfSize
+				+ "\t" + checksum + "\t" + referenceSites;
 	}
 
 	public String getId() {
-		return "chunk_" + chromosome + "_" + nf.format(start) + "_"
-				+ nf.format(end);
-
+		return String.format("chunk_%s_%010d_%010d", chromosome, start, end);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, chromosome);
+		out.writeInt(start);
+		out.writeInt(end);
+		out.writeBoolean(phased);
+		Text.writeString(out, vcfFilename);
+		Text.writeString(out, indexFilename);
+		out.writeInt(snps);
+		out.writeInt(inReference);
+		out.writeInt(samples);
+		out.writeLong(vcfSize);
+		out.writeLong(checksum);
+		out.writeInt(referenceSites);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		chromosome = Text.readString(in);
+		start = in.readInt();
+		end = in.readInt();
+		phased = in.readBoolean();
+		vcfFilename = Text.readString(in);
+		indexFilename = Text.readString(in);
+		snps = in.readInt();
+		inReference = in.readInt();
+		samples = in.readInt();
+		vcfSize = in.readLong();
+		checksum = in.readLong();
+		referenceSites = in.readInt();
 	}
 	
 	// chunk specific
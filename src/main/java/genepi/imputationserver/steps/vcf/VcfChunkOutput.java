@@ -37,13 +37,13 @@ public class VcfChunkOutput extends VcfChunk {
 		infoFixedFilename = infoFilename + ".fixed";
 		phasedVcfFilename = prefix + ".phased.vcf";
 
-		
-		setVcfFilename(prefix + ".vcf");
+		// chunks are bgzipped and indexed by the quality control
+		setVcfFilename(prefix + ".vcf.gz");
 		setChromosome(chunk.getChromosome());
 		setStart(chunk.getStart());
 		setEnd(chunk.getEnd());
 		setPhased(chunk.isPhased());
-		setIndexFilename(chunk.getIndexFilename());
+		setIndexFilename(prefix + ".vcf.gz.tbi");
 	}
 
 	public String getPrefix() {
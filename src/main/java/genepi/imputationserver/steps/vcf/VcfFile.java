@@ -1,9 +1,12 @@
 package genepi.imputationserver.steps.vcf;
 
+import java.util.Map;
 import java.util.Set;
 
 public class VcfFile {
 
+	public static final int DENSITY_BIN_SIZE = 1000000;
+
 	private Set<Integer> chunks;
 
 	private Set<String> chromosomes;
@@ -27,6 +30,8 @@ public class VcfFile {
 	private int chunkSize;
 	
 	private boolean chrPrefix;
+
+	private Map<Integer, Integer> density;
 	
 	public VcfFile() {
 
@@ -147,6 +152,15 @@ public class VcfFile {
 		return chunkSize;
 	}
 
+	// number of variants per bin of size DENSITY_BIN_SIZE
+	public Map<Integer, Integer> getDensity() {
+		return density;
+	}
+
+	public void setDensity(Map<Integer, Integer> density) {
+		this.density = density;
+	}
+
 	public boolean isChrX() {
 		return chrX;
 	}
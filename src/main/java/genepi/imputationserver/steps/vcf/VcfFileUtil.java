@@ -1,15 +1,21 @@
 package genepi.imputationserver.steps.vcf;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.hadoop.conf.Configuration;
@@ -22,6 +28,13 @@ import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.command.Command;
 import genepi.io.FileUtil;
 import genepi.io.text.LineReader;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 
 public class VcfFileUtil {
@@ -41,6 +54,7 @@ public class VcfFileUtil {
 		Set<Integer> chunks = new HashSet<Integer>();
 		Set<String> chromosomes = new HashSet<String>();
 		Set<String> rawChromosomes = new HashSet<String>();
+		Map<Integer, Integer> density = new HashMap<Integer, Integer>();
 		int noSnps = 0;
 		int noSamples = 0;
 
@@ -118,6 +132,10 @@ public class VcfFileUtil {
 					chunks.add(chunk);
 					noSnps++;
 
+					int bin = position / VcfFile.DENSITY_BIN_SIZE;
+					Integer variants = density.get(bin);
+					density.put(bin, variants == null ? 1 : variants + 1);
+
 				} else {
 
 					if (line.startsWith("#CHROM")) {
@@ -184,6 +202,7 @@ public class VcfFileUtil {
 			pair.setPhased(phased);
 			pair.setPhasedAutodetect(phasedAutodetect);
 			pair.setChunkSize(chunksize);
+			pair.setDensity(density);
 			return pair;
 
 		} catch (Exception e) {
@@ -354,4 +373,40 @@ public class VcfFileUtil {
 		}
 		
 	}
+
+	// creates the tabix index without starting a process, filename has to
+	// end with .gz
+	public static void createTabixIndex(String vcfFilename) throws IOException {
+		TabixIndex index = IndexFactory.createTabixIndex(new File(vcfFilename), new VCFCodec(), TabixFormat.VCF,
+				null);
+		index.write(new File(vcfFilename + TabixUtils.STANDARD_INDEX_EXTENSION));
+	}
+
+	public static boolean isBgzf(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(filename));
+		try {
+			return BlockCompressedInputStream.isValidFile(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// converts a plain or gzipped file to bgzf in one pass
+	public static void bgzip(String input, String output) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(input));
+		in.mark(2);
+		boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+		in.reset();
+		if (gzipped) {
+			in = new GZIPInputStream(in);
+		}
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(new File(output));
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		out.close();
+	}
 }
\ No newline at end of file
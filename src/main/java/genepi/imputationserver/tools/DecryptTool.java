@@ -0,0 +1,99 @@
+package genepi.imputationserver.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import genepi.base.Tool;
+import genepi.imputationserver.util.AesGcmInputStream;
+
+public class DecryptTool extends Tool {
+
+	public static final String PASSWORD_VARIABLE = "IMPUTATIONSERVER_PASSWORD";
+
+	public DecryptTool(String[] args) {
+		super(args);
+	}
+
+	@Override
+	public void createParameters() {
+		addParameter("input", "encrypted file (.aes)");
+		addParameter("output", "decrypted file");
+		// visible in the process list, only a fallback for old scripts
+		addOptionalParameter("password", "password (prefer the prompt or " + PASSWORD_VARIABLE + ")", Tool.STRING);
+	}
+
+	@Override
+	public void init() {
+		System.out.println("Decrypt AES-GCM result files");
+		System.out.println("");
+	}
+
+	@Override
+	public int run() {
+
+		String input = getValue("input").toString();
+		String output = getValue("output").toString();
+
+		try {
+
+			String password = readPassword();
+			if (password == null || password.isEmpty()) {
+				System.out.println("No password provided.");
+				return 1;
+			}
+
+			InputStream in = new AesGcmInputStream(new BufferedInputStream(new FileInputStream(input)), password);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			in.close();
+			out.close();
+
+			System.out.println("File decrypted to " + output + ".");
+			return 0;
+
+		} catch (Exception e) {
+			System.out.println("Decryption failed: " + e.getMessage());
+			return 1;
+		}
+
+	}
+
+	// environment variable, parameter, console prompt or first line of stdin
+	private String readPassword() throws IOException {
+
+		String password = System.getenv(PASSWORD_VARIABLE);
+		if (password != null) {
+			return password;
+		}
+
+		Object parameter = getValue("password");
+		if (parameter != null) {
+			System.out.println("Warning: passwords on the command line are visible to other users, use the prompt or "
+					+ PASSWORD_VARIABLE + " instead.");
+			return parameter.toString();
+		}
+
+		Console console = System.console();
+		if (console != null) {
+			char[] chars = console.readPassword("Password: ");
+			return chars != null ? new String(chars) : null;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		return reader.readLine();
+
+	}
+
+}
@@ -0,0 +1,62 @@
+package genepi.imputationserver.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import genepi.base.Tool;
+import genepi.imputationserver.util.InfoColumnarReader;
+
+public class InfoQueryTool extends Tool {
+
+	public InfoQueryTool(String[] args) {
+		super(args);
+	}
+
+	@Override
+	public void createParameters() {
+		addParameter("input", "columnar info file (.info.col)");
+		addParameter("output", "info file (text)");
+		addParameter("rsq", "min Rsq, e.g. 0.3");
+	}
+
+	@Override
+	public void init() {
+		System.out.println("Filter columnar info files");
+		System.out.println("");
+	}
+
+	@Override
+	public int run() {
+
+		String input = getValue("input").toString();
+		String output = getValue("output").toString();
+		float rsq = Float.parseFloat(getValue("rsq").toString());
+
+		try {
+
+			InfoColumnarReader reader = new InfoColumnarReader(input);
+			reader.setMinRsq(rsq);
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+			out.write("SNP\tREF(0)\tALT(1)\tMAF\tRsq\tGenotyped\n".getBytes());
+			int variants = 0;
+			while (reader.next()) {
+				out.write((reader.get().toString() + "\n").getBytes());
+				variants++;
+			}
+			out.close();
+			reader.close();
+
+			System.out.println(variants + " variants written to " + output + ". Read " + reader.getReadBlocks()
+					+ " of " + reader.getBlocks().size() + " blocks.");
+			return 0;
+
+		} catch (Exception e) {
+			System.out.println("Query failed: " + e.getMessage());
+			return 1;
+		}
+
+	}
+
+}
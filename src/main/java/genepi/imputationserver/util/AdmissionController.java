@@ -0,0 +1,348 @@
+package genepi.imputationserver.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import genepi.io.FileUtil;
+
+/**
+ * Limits the number of concurrent Hadoop jobs of all workflows on this host.
+ * All state is stored in a shared folder: a waiting job holds a locked ticket
+ * file, a running job a locked lease file. Files of crashed processes are not
+ * locked anymore and are removed. Tickets are admitted in fair order: users
+ * with less running jobs first, then first come first served.
+ */
+public class AdmissionController {
+
+	public static final long POLL_INTERVAL = 5000;
+
+	private static final String TICKET = ".ticket";
+
+	private static final String LEASE = ".lease";
+
+	// tickets and leases of this process: they must not be opened again,
+	// closing an other channel of a file can release its locks
+	private static Map<String, Lease> held = new ConcurrentHashMap<String, Lease>();
+
+	private String folder;
+
+	// 0 = no limit
+	private int maxJobs = 0;
+
+	private int maxJobsPerUser = 0;
+
+	private int maxJobsPerPanel = 0;
+
+	private int maxSlots = 0;
+
+	private Log log = LogFactory.getLog(AdmissionController.class);
+
+	public AdmissionController(String folder) throws IOException {
+		this.folder = folder;
+		if (!FileUtil.createDirectory(folder) && !new File(folder).isDirectory()) {
+			throw new IOException("Admission folder " + folder + " is not writable!");
+		}
+	}
+
+	public void setMaxJobs(int maxJobs) {
+		this.maxJobs = maxJobs;
+	}
+
+	public void setMaxJobsPerUser(int maxJobsPerUser) {
+		this.maxJobsPerUser = maxJobsPerUser;
+	}
+
+	public void setMaxJobsPerPanel(int maxJobsPerPanel) {
+		this.maxJobsPerPanel = maxJobsPerPanel;
+	}
+
+	// max sum of weights (e.g. map tasks) of all running jobs
+	public void setMaxSlots(int maxSlots) {
+		this.maxSlots = maxSlots;
+	}
+
+	public void setLog(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * Blocks until the job is admitted. The returned lease has to be released
+	 * when the job is finished.
+	 */
+	public Lease acquire(String user, String panel, int weight) throws IOException, InterruptedException {
+		Lease ticket = createTicket(user, panel, weight);
+		try {
+			while (true) {
+				if (admit(ticket)) {
+					return ticket;
+				}
+				Thread.sleep(POLL_INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			ticket.release();
+			throw e;
+		}
+	}
+
+	// returns null if the job cannot be admitted now
+	public Lease tryAcquire(String user, String panel, int weight) throws IOException {
+		Lease ticket = createTicket(user, panel, weight);
+		if (admit(ticket)) {
+			return ticket;
+		}
+		ticket.release();
+		return null;
+	}
+
+	private Lease createTicket(String user, String panel, int weight) throws IOException {
+		String name = String.format("%020d", System.currentTimeMillis()) + "-" + UUID.randomUUID().toString();
+		File file = new File(folder, name + TICKET);
+		RandomAccessFile data = new RandomAccessFile(file, "rw");
+		FileLock lock = data.getChannel().lock();
+		data.writeUTF(user);
+		data.writeUTF(panel);
+		data.writeInt(weight);
+		Lease ticket = new Lease(file, data, lock, user, panel, weight);
+		held.put(file.getAbsolutePath(), ticket);
+		return ticket;
+	}
+
+	private boolean admit(Lease ticket) throws IOException {
+		// file locks are per process, threads are synchronized here
+		synchronized (AdmissionController.class) {
+			return admitLocked(ticket);
+		}
+	}
+
+	private boolean admitLocked(Lease ticket) throws IOException {
+
+		RandomAccessFile globalFile = new RandomAccessFile(new File(folder, ".lock"), "rw");
+		FileLock globalLock = globalFile.getChannel().lock();
+
+		try {
+
+			List<Entry> leases = new Vector<Entry>();
+			List<Entry> tickets = new Vector<Entry>();
+
+			File[] files = new File(folder).listFiles();
+			if (files == null) {
+				return false;
+			}
+			for (File file : files) {
+				boolean isLease = file.getName().endsWith(LEASE);
+				boolean isTicket = file.getName().endsWith(TICKET);
+				if (!isLease && !isTicket) {
+					continue;
+				}
+				Entry entry = readEntry(file);
+				if (entry == null) {
+					continue;
+				}
+				if (isLease) {
+					leases.add(entry);
+				} else {
+					tickets.add(entry);
+				}
+			}
+
+			// fair order: users with less running jobs first, then oldest
+			final Map<String, Integer> running = new HashMap<String, Integer>();
+			for (Entry lease : leases) {
+				running.put(lease.user, getCount(running, lease.user) + 1);
+			}
+			Collections.sort(tickets, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry a, Entry b) {
+					int result = Integer.compare(getCount(running, a.user), getCount(running, b.user));
+					if (result != 0) {
+						return result;
+					}
+					return a.name.compareTo(b.name);
+				}
+			});
+
+			// first ticket that fits into the limits
+			for (Entry entry : tickets) {
+				if (fits(entry, leases)) {
+					if (entry.name.equals(ticket.file.getName())) {
+						ticket.admit();
+						return true;
+					}
+					return false;
+				}
+			}
+
+			return false;
+
+		} finally {
+			globalLock.release();
+			globalFile.close();
+		}
+
+	}
+
+	private boolean fits(Entry entry, List<Entry> leases) {
+
+		int jobs = 0;
+		int jobsUser = 0;
+		int jobsPanel = 0;
+		int slots = 0;
+		for (Entry lease : leases) {
+			jobs++;
+			slots += lease.weight;
+			if (lease.user.equals(entry.user)) {
+				jobsUser++;
+			}
+			if (lease.panel.equals(entry.panel)) {
+				jobsPanel++;
+			}
+		}
+
+		if (maxJobs > 0 && jobs + 1 > maxJobs) {
+			return false;
+		}
+		if (maxJobsPerUser > 0 && jobsUser + 1 > maxJobsPerUser) {
+			return false;
+		}
+		if (maxJobsPerPanel > 0 && jobsPanel + 1 > maxJobsPerPanel) {
+			return false;
+		}
+		// a job larger than all slots is admitted if nothing else runs
+		if (maxSlots > 0 && jobs > 0 && slots + entry.weight > maxSlots) {
+			return false;
+		}
+		return true;
+
+	}
+
+	// reads a ticket or lease, removes it if its owner is not alive anymore
+	private Entry readEntry(File file) throws IOException {
+
+		Entry entry = new Entry();
+		entry.name = file.getName();
+
+		Lease own = held.get(file.getAbsolutePath());
+		if (own != null) {
+			entry.user = own.user;
+			entry.panel = own.panel;
+			entry.weight = own.weight;
+			return entry;
+		}
+
+		RandomAccessFile data = null;
+		try {
+			data = new RandomAccessFile(file, "rw");
+		} catch (IOException e) {
+			// deleted in the meantime
+			return null;
+		}
+
+		try {
+			FileLock lock = null;
+			try {
+				lock = data.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				// locked by this process
+				lock = null;
+			}
+			if (lock != null) {
+				// stale
+				lock.release();
+				file.delete();
+				return null;
+			}
+			data.seek(0);
+			entry.user = data.readUTF();
+			entry.panel = data.readUTF();
+			entry.weight = data.readInt();
+			return entry;
+		} catch (EOFException e) {
+			// not written yet
+			return null;
+		} finally {
+			data.close();
+		}
+
+	}
+
+	private static int getCount(Map<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+
+	class Entry {
+
+		String name;
+
+		String user;
+
+		String panel;
+
+		int weight;
+
+	}
+
+	public class Lease {
+
+		private File file;
+
+		private RandomAccessFile data;
+
+		private FileLock lock;
+
+		private String user;
+
+		private String panel;
+
+		private int weight;
+
+		Lease(File file, RandomAccessFile data, FileLock lock, String user, String panel, int weight) {
+			this.file = file;
+			this.data = data;
+			this.lock = lock;
+			this.user = user;
+			this.panel = panel;
+			this.weight = weight;
+		}
+
+		// ticket becomes a lease, the lock stays valid after renaming
+		void admit() throws IOException {
+			String name = file.getName();
+			File lease = new File(folder, name.substring(0, name.length() - TICKET.length()) + LEASE);
+			if (!file.renameTo(lease)) {
+				throw new IOException("Ticket " + file + " could not be admitted.");
+			}
+			held.remove(file.getAbsolutePath());
+			file = lease;
+			held.put(file.getAbsolutePath(), this);
+		}
+
+		public void release() {
+			try {
+				held.remove(file.getAbsolutePath());
+				file.delete();
+				lock.release();
+				data.close();
+			} catch (IOException e) {
+				log.warn("Releasing lease " + file + " failed: " + e.getMessage());
+			}
+		}
+
+	}
+
+}
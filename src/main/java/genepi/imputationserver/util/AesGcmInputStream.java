@@ -0,0 +1,145 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Decrypts a stream written by {@link AesGcmOutputStream}.
+ */
+public class AesGcmInputStream extends InputStream {
+
+	private PushbackInputStream in;
+
+	private SecretKey key;
+
+	private byte[] header;
+
+	private byte[] noncePrefix;
+
+	private byte[] segmentBuffer;
+
+	private byte[] plain = new byte[0];
+
+	private int position = 0;
+
+	private int segment = 0;
+
+	private boolean finished = false;
+
+	public AesGcmInputStream(InputStream in, String password) throws IOException {
+
+		this.in = new PushbackInputStream(in, 1);
+
+		DataInputStream data = new DataInputStream(this.in);
+		int magic = data.readInt();
+		if (magic != AesGcmOutputStream.MAGIC) {
+			throw new IOException("File is not encrypted with AES-GCM.");
+		}
+		int version = data.readInt();
+		if (version != AesGcmOutputStream.VERSION) {
+			throw new IOException("Unsupported version " + version + ".");
+		}
+		int iterations = data.readInt();
+		int segmentSize = data.readInt();
+		if (segmentSize <= 0) {
+			throw new IOException("Invalid segment size " + segmentSize + ".");
+		}
+		byte[] salt = new byte[AesGcmOutputStream.SALT_LENGTH];
+		data.readFully(salt);
+		noncePrefix = new byte[AesGcmOutputStream.NONCE_PREFIX_LENGTH];
+		data.readFully(noncePrefix);
+
+		// header is authenticated by every segment
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream headerData = new DataOutputStream(bytes);
+		headerData.writeInt(magic);
+		headerData.writeInt(version);
+		headerData.writeInt(iterations);
+		headerData.writeInt(segmentSize);
+		headerData.write(salt);
+		headerData.write(noncePrefix);
+		headerData.close();
+		header = bytes.toByteArray();
+
+		key = AesGcmOutputStream.deriveKey(password, salt, iterations);
+		segmentBuffer = new byte[segmentSize + AesGcmOutputStream.TAG_LENGTH];
+
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int read = read(b, 0, 1);
+		return read < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		while (position == plain.length) {
+			if (finished) {
+				return -1;
+			}
+			nextSegment();
+		}
+		int length = Math.min(len, plain.length - position);
+		System.arraycopy(plain, position, b, off, length);
+		position += length;
+		return length;
+	}
+
+	private void nextSegment() throws IOException {
+
+		int length = 0;
+		while (length < segmentBuffer.length) {
+			int read = in.read(segmentBuffer, length, segmentBuffer.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+
+		// the last segment is followed by the end of the file
+		int next = in.read();
+		boolean last = next < 0;
+		if (!last) {
+			in.unread(next);
+		}
+
+		if (length < AesGcmOutputStream.TAG_LENGTH) {
+			throw new IOException("File is truncated.");
+		}
+
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(AesGcmOutputStream.TAG_LENGTH * 8,
+					AesGcmOutputStream.getNonce(noncePrefix, segment, last)));
+			cipher.updateAAD(header);
+			plain = cipher.doFinal(segmentBuffer, 0, length);
+		} catch (AEADBadTagException e) {
+			throw new IOException("Wrong password or corrupt file.");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Decryption failed.", e);
+		}
+
+		position = 0;
+		segment++;
+		finished = last;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
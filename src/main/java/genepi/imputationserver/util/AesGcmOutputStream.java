@@ -0,0 +1,213 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a stream with AES-256-GCM in independent segments, so segments can
+ * be encrypted on several cores. The key is derived from the password with
+ * PBKDF2. Each segment has its own nonce (random prefix, segment counter and
+ * a flag for the last segment) and authenticates the file header, so
+ * segments cannot be reordered, truncated or moved to an other file.
+ *
+ * Format: header (magic, version, iterations, segment size, salt, nonce
+ * prefix) followed by the encrypted segments, each with a 16 byte tag. All
+ * segments but the last have the full segment size.
+ */
+public class AesGcmOutputStream extends OutputStream {
+
+	public static final int MAGIC = 0x41455347;
+
+	public static final int VERSION = 1;
+
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+
+	public static final int ITERATIONS = 100000;
+
+	public static final int SALT_LENGTH = 16;
+
+	public static final int NONCE_PREFIX_LENGTH = 7;
+
+	public static final int TAG_LENGTH = 16;
+
+	private OutputStream out;
+
+	private SecretKey key;
+
+	private byte[] header;
+
+	private byte[] noncePrefix;
+
+	private byte[] buffer;
+
+	private int count = 0;
+
+	private int segment = 0;
+
+	private ExecutorService executor;
+
+	private boolean ownExecutor = false;
+
+	// max number of segments in memory
+	private int maxPending;
+
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private boolean closed = false;
+
+	public AesGcmOutputStream(OutputStream out, String password, int threads) throws IOException {
+		this(out, password, Executors.newFixedThreadPool(threads), threads * 2, SEGMENT_SIZE);
+		ownExecutor = true;
+	}
+
+	// executor can be shared by several streams
+	public AesGcmOutputStream(OutputStream out, String password, ExecutorService executor, int maxPending,
+			int segmentSize) throws IOException {
+
+		this.out = out;
+		this.executor = executor;
+		this.maxPending = Math.max(maxPending, 1);
+		buffer = new byte[segmentSize];
+
+		SecureRandom random = new SecureRandom();
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		random.nextBytes(noncePrefix);
+
+		key = deriveKey(password, salt, ITERATIONS);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(ITERATIONS);
+		data.writeInt(segmentSize);
+		data.write(salt);
+		data.write(noncePrefix);
+		data.close();
+		header = bytes.toByteArray();
+
+		out.write(header);
+
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			// a full segment is sent when more data follows: only close() knows
+			// the last segment
+			if (count == buffer.length) {
+				submit(false);
+			}
+			int length = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, length);
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submit(true);
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+		} finally {
+			if (ownExecutor) {
+				executor.shutdown();
+			}
+			out.close();
+		}
+	}
+
+	private void submit(final boolean last) throws IOException {
+
+		if (segment == Integer.MAX_VALUE) {
+			throw new IOException("Too many segments.");
+		}
+
+		final byte[] data = buffer;
+		final int length = count;
+		final int index = segment++;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.ENCRYPT_MODE, key,
+						new GCMParameterSpec(TAG_LENGTH * 8, getNonce(noncePrefix, index, last)));
+				cipher.updateAAD(header);
+				return cipher.doFinal(data, 0, length);
+			}
+		}));
+
+		buffer = new byte[buffer.length];
+		count = 0;
+
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+
+	}
+
+	// segments are written in order
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Encryption interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Encryption failed.", e.getCause());
+		}
+	}
+
+	static byte[] getNonce(byte[] prefix, int segment, boolean last) {
+		byte[] nonce = new byte[NONCE_PREFIX_LENGTH + 5];
+		System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+		nonce[NONCE_PREFIX_LENGTH] = (byte) (segment >>> 24);
+		nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (segment >>> 16);
+		nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (segment >>> 8);
+		nonce[NONCE_PREFIX_LENGTH + 3] = (byte) segment;
+		nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+		return nonce;
+	}
+
+	static SecretKey deriveKey(String password, byte[] salt, int iterations) throws IOException {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+			return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Key derivation failed.", e);
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package genepi.imputationserver.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file block by block without decompressing it. Blocks can be
+ * copied unchanged into an other BGZF file, only blocks whose content is
+ * needed are inflated.
+ */
+public class BgzfBlockReader {
+
+	public static final int HEADER_SIZE = 18;
+
+	public static final int FOOTER_SIZE = 8;
+
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	private InputStream in;
+
+	private byte[] block = new byte[MAX_BLOCK_SIZE];
+
+	private int size = 0;
+
+	private Inflater inflater = new Inflater(true);
+
+	public BgzfBlockReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next block, returns false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+
+		int read = readFully(block, 0, HEADER_SIZE);
+		if (read == 0) {
+			size = 0;
+			return false;
+		}
+		if (read < HEADER_SIZE || !isBgzfHeader(block)) {
+			throw new IOException("Invalid BGZF block header.");
+		}
+
+		// BSIZE: total block size - 1
+		size = ((block[16] & 0xff) | ((block[17] & 0xff) << 8)) + 1;
+		if (size < HEADER_SIZE + FOOTER_SIZE) {
+			throw new IOException("Invalid BGZF block size " + size + ".");
+		}
+		if (readFully(block, HEADER_SIZE, size - HEADER_SIZE) < size - HEADER_SIZE) {
+			throw new EOFException("Truncated BGZF block.");
+		}
+		return true;
+
+	}
+
+	// compressed block including header and footer
+	public byte[] getBlock() {
+		return block;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the buffer of the current block and continues with the given
+	 * buffer, so a block can be kept without copying it. Call next() before
+	 * other methods.
+	 */
+	public byte[] swapBlock(byte[] buffer) {
+		if (buffer.length < MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Buffer is smaller than a BGZF block.");
+		}
+		byte[] current = block;
+		block = buffer;
+		return current;
+	}
+
+	// ISIZE of the footer, 0 for the eof marker
+	public int getUncompressedSize() {
+		return getUncompressedSize(block, size);
+	}
+
+	private static int getUncompressedSize(byte[] block, int size) {
+		return (block[size - 4] & 0xff) | ((block[size - 3] & 0xff) << 8) | ((block[size - 2] & 0xff) << 16)
+				| ((block[size - 1] & 0xff) << 24);
+	}
+
+	public byte[] inflate() throws IOException {
+		return inflate(block, size, inflater);
+	}
+
+	public static byte[] inflate(byte[] block, int size) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			return inflate(block, size, inflater);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] block, int size, Inflater inflater) throws IOException {
+		byte[] data = new byte[getUncompressedSize(block, size)];
+		inflater.reset();
+		inflater.setInput(block, HEADER_SIZE, size - HEADER_SIZE - FOOTER_SIZE);
+		try {
+			int inflated = 0;
+			while (inflated < data.length) {
+				int count = inflater.inflate(data, inflated, data.length - inflated);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != data.length) {
+				throw new IOException("Corrupt BGZF block.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block.", e);
+		}
+		return data;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	// gzip member with FEXTRA and the BC subfield
+	private static boolean isBgzfHeader(byte[] header) {
+		return (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && (header[3] & 4) != 0 && header[12] == 'B'
+				&& header[13] == 'C';
+	}
+
+	private int readFully(byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int read = in.read(buffer, offset + total, length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+}
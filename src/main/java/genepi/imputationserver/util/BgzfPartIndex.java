@@ -0,0 +1,163 @@
+package genepi.imputationserver.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Vector;
+
+import genepi.io.text.LineReader;
+
+/**
+ * Index of a bgzipped vcf part without header. For each BGZF block with at
+ * least one record start it stores the compressed offset of the block in the
+ * part, the offset of the first record start in the block and the region of
+ * all records starting in the block. Parts are concatenated by the export and
+ * their indices are shifted and combined into one tabix index.
+ */
+public class BgzfPartIndex {
+
+	public static final String EXTENSION = ".idx";
+
+	private List<Entry> entries = new Vector<Entry>();
+
+	private boolean lineStart = true;
+
+	// first fields of the current record, can span several blocks
+	private StringBuilder head = new StringBuilder();
+
+	private int tabs = 0;
+
+	private boolean inHead = false;
+
+	private Entry recordEntry = null;
+
+	/**
+	 * Adds the uncompressed data of the next block of the part.
+	 */
+	public void addBlock(long compressedOffset, byte[] data, int offset, int length) {
+
+		Entry blockEntry = null;
+
+		for (int i = offset; i < offset + length; i++) {
+
+			if (lineStart) {
+				if (blockEntry == null) {
+					blockEntry = new Entry(compressedOffset, i - offset);
+					entries.add(blockEntry);
+				}
+				recordEntry = blockEntry;
+				lineStart = false;
+				inHead = true;
+				head.setLength(0);
+				tabs = 0;
+			}
+
+			byte b = data[i];
+			if (b == '\n') {
+				if (inHead) {
+					finishHead();
+				}
+				lineStart = true;
+			} else if (inHead) {
+				if (b == '\t') {
+					tabs++;
+					// CHROM, POS, ID and REF are needed
+					if (tabs == 4) {
+						finishHead();
+						continue;
+					}
+				}
+				head.append((char) b);
+			}
+
+		}
+
+	}
+
+	private void finishHead() {
+		inHead = false;
+		String[] tiles = head.toString().split("\t");
+		if (tiles.length < 2) {
+			return;
+		}
+		int start = Integer.parseInt(tiles[1]);
+		int end = start;
+		if (tiles.length > 3) {
+			end = start + tiles[3].length() - 1;
+		}
+		recordEntry.add(tiles[0], start, end);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public void write(OutputStream out) throws IOException {
+		for (Entry entry : entries) {
+			if (entry.chromosome != null) {
+				out.write((entry.compressedOffset + "\t" + entry.uncompressedOffset + "\t" + entry.chromosome + "\t"
+						+ entry.start + "\t" + entry.end + "\n").getBytes());
+			}
+		}
+		out.close();
+	}
+
+	public static BgzfPartIndex read(InputStream in) throws IOException {
+		BgzfPartIndex index = new BgzfPartIndex();
+		LineReader reader = new LineReader(in);
+		while (reader.next()) {
+			String[] tiles = reader.get().split("\t");
+			Entry entry = new Entry(Long.parseLong(tiles[0]), Integer.parseInt(tiles[1]));
+			entry.add(tiles[2], Integer.parseInt(tiles[3]), Integer.parseInt(tiles[4]));
+			index.entries.add(entry);
+		}
+		reader.close();
+		return index;
+	}
+
+	public static class Entry {
+
+		private long compressedOffset;
+
+		private int uncompressedOffset;
+
+		private String chromosome = null;
+
+		private int start = Integer.MAX_VALUE;
+
+		private int end = 0;
+
+		Entry(long compressedOffset, int uncompressedOffset) {
+			this.compressedOffset = compressedOffset;
+			this.uncompressedOffset = uncompressedOffset;
+		}
+
+		void add(String chromosome, int start, int end) {
+			if (this.chromosome == null) {
+				this.chromosome = chromosome;
+			}
+			this.start = Math.min(this.start, start);
+			this.end = Math.max(this.end, end);
+		}
+
+		// BGZF virtual offset if the part starts at the given position
+		public long getVirtualOffset(long partOffset) {
+			return ((partOffset + compressedOffset) << 16) | uncompressedOffset;
+		}
+
+		public String getChromosome() {
+			return chromosome;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+	}
+
+}
@@ -1,30 +1,176 @@
 package genepi.imputationserver.util;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfFileUtil;
 import genepi.io.text.LineReader;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 public class FileMerger {
 
+	// number of info files read ahead
+	public static final int INFO_PREFETCH = 2;
+
+	/**
+	 * Splits a bgzipped vcf file into header and data. Only blocks with header
+	 * lines are inflated, the block with the first data line is compressed
+	 * again and all following blocks are copied unchanged. Both outputs are
+	 * written without eof marker, so they can be concatenated.
+	 */
 	public static void splitIntoHeaderAndData(String input, OutputStream outHeader, OutputStream outData)
 			throws IOException {
+		splitIntoHeaderAndData(input, outHeader, outData, null);
+	}
+
+	/**
+	 * Writes also a part index of the data (see {@link BgzfPartIndex}), data
+	 * blocks are inflated but not compressed again. Returns false if no index
+	 * could be created.
+	 */
+	public static boolean splitIntoHeaderAndData(String input, OutputStream outHeader, OutputStream outData,
+			OutputStream outIndex) throws IOException {
+
+		CountingOutputStream counter = new CountingOutputStream(outData);
+		BgzipSplitOutputStream header = new BgzipSplitOutputStream(outHeader);
+		BgzipSplitOutputStream data = new BgzipSplitOutputStream(counter);
+
+		if (!VcfFileUtil.isBgzf(input)) {
+			splitLines(input, header, data);
+			outHeader.close();
+			outData.close();
+			return false;
+		}
+
+		BgzfPartIndex index = outIndex != null ? new BgzfPartIndex() : null;
+
+		BgzfBlockReader reader = new BgzfBlockReader(new BufferedInputStream(new FileInputStream(input)));
+
+		// header lines can span several blocks
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		boolean inHeader = true;
+		int lastByte = -1;
+		while (inHeader && reader.next()) {
+			byte[] bytes = reader.inflate();
+			for (int i = 0; i < bytes.length; i++) {
+				if (line.size() == 0 && bytes[i] != '#') {
+					inHeader = false;
+					data.write(bytes, i, bytes.length - i);
+					lastByte = bytes[bytes.length - 1];
+					// an inflated block has at most 64 KB, so the rest of the
+					// boundary block is always the first block of the part
+					if (index != null) {
+						index.addBlock(0, bytes, i, bytes.length - i);
+					}
+					break;
+				}
+				line.write(bytes[i]);
+				if (bytes[i] == '\n') {
+					writeHeaderLine(header, line);
+					line.reset();
+				}
+			}
+		}
+		if (line.size() > 0) {
+			line.write('\n');
+			writeHeaderLine(header, line);
+		}
+		header.close();
+		outHeader.close();
+
+		// boundary block is complete, following blocks are copied
+		data.flush();
+		byte[] lastBlock = new byte[BgzfBlockReader.MAX_BLOCK_SIZE];
+		int lastSize = 0;
+		while (reader.next()) {
+			// skip eof markers and empty blocks
+			if (reader.getUncompressedSize() == 0) {
+				continue;
+			}
+			if (index != null) {
+				index.addBlock(counter.getCount(), reader.inflate(), 0, reader.getUncompressedSize());
+			}
+			counter.write(reader.getBlock(), 0, reader.getSize());
+			// only the last block is inflated, buffers are swapped instead of copied
+			lastSize = reader.getSize();
+			lastBlock = reader.swapBlock(lastBlock);
+		}
+		reader.close();
+
+		if (lastSize > 0) {
+			byte[] bytes = BgzfBlockReader.inflate(lastBlock, lastSize);
+			lastByte = bytes[bytes.length - 1];
+		}
+
+		// data of several chunks is concatenated
+		if (lastByte != -1 && lastByte != '\n') {
+			data.write('\n');
+		}
+		data.close();
+		outData.close();
+
+		if (index != null) {
+			index.write(outIndex);
+			return true;
+		}
+		return false;
+
+	}
+
+	// counts the written bytes, e.g. the compressed bytes of a part
+	static class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+	}
+
+	private static void writeHeaderLine(OutputStream out, ByteArrayOutputStream line) throws IOException {
+		if (!line.toString().startsWith("##minimac4_Command")) {
+			line.writeTo(out);
+		}
+	}
+
+	private static void splitLines(String input, OutputStream outHeader, OutputStream outData)
+			throws IOException {
 		LineReader reader = new LineReader(input);
 		while (reader.next()) {
 			String line = reader.get();
@@ -139,53 +285,105 @@ public class FileMerger {
 	}
 
 	public static void mergeAndGzInfo(ArrayList<String> hdfs, String local) throws IOException {
+		OutputStream out = new FileOutputStream(local);
+		mergeAndGzInfo(hdfs, out);
+		out.close();
+	}
 
-		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(local));
+	// bgzips into the output stream without closing it
+	public static void mergeAndGzInfo(ArrayList<String> hdfs, OutputStream output) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			mergeAndGzInfo(hdfs, output, executor, threads * 4);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// blocks are compressed by the executor, e.g. shared by all chromosomes
+	public static void mergeAndGzInfo(ArrayList<String> hdfs, OutputStream output, ExecutorService executor,
+			int maxPending) throws IOException {
+		mergeAndGzInfo(hdfs, output, executor, maxPending, null);
+	}
+
+	// the merged text is also written uncompressed into copy, e.g. an
+	// InfoColumnarWriter. copy is not closed.
+	public static void mergeAndGzInfo(ArrayList<String> hdfs, OutputStream output, ExecutorService executor,
+			int maxPending, OutputStream copy) throws IOException {
+		mergeAndGzInfo(hdfs, new ParallelBgzfOutputStream(output, executor, maxPending), copy);
+	}
+
+	/**
+	 * Concatenates the info files and keeps only the header line of the first
+	 * file. The next files are read while the current file is written, the
+	 * content is copied without parsing lines.
+	 */
+	private static void mergeAndGzInfo(ArrayList<String> hdfs, ParallelBgzfOutputStream out, OutputStream copy)
+			throws IOException {
 
 		Configuration conf = HdfsUtil.getConfiguration();
 
 		FileSystem fileSystem = FileSystem.get(conf);
 
+		List<String> files = new Vector<String>();
 		for (String folder : hdfs) {
-			
-			Path pathFolder = new Path(folder);
-			
-			FileStatus[] files = fileSystem.listStatus(pathFolder);
+			for (FileStatus file : fileSystem.listStatus(new Path(folder))) {
+				files.add(file.getPath().toString());
+			}
+		}
 
-			boolean firstFile = true;
+		PrefetchingHdfsReader reader = new PrefetchingHdfsReader(files);
+		reader.setPrefetch(INFO_PREFETCH);
 
-			for (FileStatus file : files) {
+		try {
 
-				FSDataInputStream in = fileSystem.open(file.getPath());
+			boolean headerWritten = false;
+			byte[] buffer = new byte[64 * 1024];
 
-				LineReader reader = new LineReader(in);
+			while (reader.next()) {
 
-				boolean header = true;
-				
-				while (reader.next()) {
+				InputStream in = reader.get();
 
-					String line = reader.get();
+				try {
 
-					if (header) {
-						if (firstFile) {
-							firstFile = false;
-						} else {
-							out.write('\n');
+					// skip header line
+					if (headerWritten) {
+						int b = in.read();
+						while (b >= 0 && b != '\n') {
+							b = in.read();
 						}
-						header = false;
-					} else {
-						out.write('\n');
+					}
+
+					int last = -1;
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						out.write(buffer, 0, read);
+						if (copy != null) {
+							copy.write(buffer, 0, read);
+						}
+						last = buffer[read - 1];
+						headerWritten = true;
+					}
 
+					if (last != -1 && last != '\n') {
+						out.write('\n');
+						if (copy != null) {
+							copy.write('\n');
+						}
 					}
-					out.write(line.toString().getBytes());
+
+				} finally {
+					in.close();
 				}
-				in.close();
 
 			}
 
+		} finally {
+			reader.close();
 		}
 
-		out.close();
+		out.finish();
 	}
 
 }
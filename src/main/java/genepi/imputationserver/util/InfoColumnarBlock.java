@@ -0,0 +1,127 @@
+package genepi.imputationserver.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Index entry of a block in a columnar info file with the statistics used to
+ * skip blocks.
+ */
+public class InfoColumnarBlock {
+
+	private long offset;
+
+	private int length;
+
+	private int count;
+
+	private int minPosition = Integer.MAX_VALUE;
+
+	private int maxPosition = Integer.MIN_VALUE;
+
+	private float minMaf = Float.NaN;
+
+	private float maxMaf = Float.NaN;
+
+	private float minRsq = Float.NaN;
+
+	private float maxRsq = Float.NaN;
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void setLength(int length) {
+		this.length = length;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	public int getMinPosition() {
+		return minPosition;
+	}
+
+	public int getMaxPosition() {
+		return maxPosition;
+	}
+
+	// NaN if no variant of the block has a value
+	public float getMinMaf() {
+		return minMaf;
+	}
+
+	public float getMaxMaf() {
+		return maxMaf;
+	}
+
+	public float getMinRsq() {
+		return minRsq;
+	}
+
+	public float getMaxRsq() {
+		return maxRsq;
+	}
+
+	void addPosition(int position) {
+		minPosition = Math.min(minPosition, position);
+		maxPosition = Math.max(maxPosition, position);
+	}
+
+	void addMaf(float maf) {
+		if (Float.isNaN(maf)) {
+			return;
+		}
+		minMaf = Float.isNaN(minMaf) ? maf : Math.min(minMaf, maf);
+		maxMaf = Float.isNaN(maxMaf) ? maf : Math.max(maxMaf, maf);
+	}
+
+	void addRsq(float rsq) {
+		if (Float.isNaN(rsq)) {
+			return;
+		}
+		minRsq = Float.isNaN(minRsq) ? rsq : Math.min(minRsq, rsq);
+		maxRsq = Float.isNaN(maxRsq) ? rsq : Math.max(maxRsq, rsq);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeLong(offset);
+		out.writeInt(length);
+		out.writeInt(count);
+		out.writeInt(minPosition);
+		out.writeInt(maxPosition);
+		out.writeFloat(minMaf);
+		out.writeFloat(maxMaf);
+		out.writeFloat(minRsq);
+		out.writeFloat(maxRsq);
+	}
+
+	static InfoColumnarBlock read(DataInput in) throws IOException {
+		InfoColumnarBlock block = new InfoColumnarBlock();
+		block.offset = in.readLong();
+		block.length = in.readInt();
+		block.count = in.readInt();
+		block.minPosition = in.readInt();
+		block.maxPosition = in.readInt();
+		block.minMaf = in.readFloat();
+		block.maxMaf = in.readFloat();
+		block.minRsq = in.readFloat();
+		block.maxRsq = in.readFloat();
+		return block;
+	}
+
+}
@@ -0,0 +1,228 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Vector;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a columnar info file written by {@link InfoColumnarWriter}. Blocks
+ * without variants in the region or above the min Rsq / MAF are skipped
+ * without reading them.
+ */
+public class InfoColumnarReader {
+
+	private RandomAccessFile file;
+
+	private String chromosome;
+
+	private List<InfoColumnarBlock> blocks = new Vector<InfoColumnarBlock>();
+
+	private float minRsq = Float.NaN;
+
+	private float minMaf = Float.NaN;
+
+	private int start = Integer.MIN_VALUE;
+
+	private int end = Integer.MAX_VALUE;
+
+	private int blockIndex = 0;
+
+	private int readBlocks = 0;
+
+	// columns of the current block
+	private int count = 0;
+
+	private int position = 0;
+
+	private int[] positions;
+
+	private float[] mafs;
+
+	private float[] rsqs;
+
+	private byte[] genotyped;
+
+	private String[] names;
+
+	private String[] refs;
+
+	private String[] alts;
+
+	private InfoVariant variant;
+
+	public InfoColumnarReader(String filename) throws IOException {
+
+		file = new RandomAccessFile(filename, "r");
+
+		if (file.length() < 20 || file.readInt() != InfoColumnarWriter.MAGIC) {
+			file.close();
+			throw new IOException("File '" + filename + "' is not a columnar info file.");
+		}
+		int version = file.readInt();
+		if (version != InfoColumnarWriter.VERSION) {
+			file.close();
+			throw new IOException("Unsupported version " + version + ".");
+		}
+
+		file.seek(file.length() - 12);
+		long indexOffset = file.readLong();
+		if (file.readInt() != InfoColumnarWriter.MAGIC) {
+			file.close();
+			throw new IOException("File '" + filename + "' is truncated.");
+		}
+
+		file.seek(indexOffset);
+		chromosome = file.readUTF();
+		int size = file.readInt();
+		for (int i = 0; i < size; i++) {
+			blocks.add(InfoColumnarBlock.read(file));
+		}
+
+	}
+
+	// keeps only variants with rsq >= minRsq
+	public void setMinRsq(float minRsq) {
+		this.minRsq = minRsq;
+	}
+
+	public void setMinMaf(float minMaf) {
+		this.minMaf = minMaf;
+	}
+
+	public void setRegion(int start, int end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public String getChromosome() {
+		return chromosome;
+	}
+
+	public List<InfoColumnarBlock> getBlocks() {
+		return blocks;
+	}
+
+	// number of blocks read, all others were skipped
+	public int getReadBlocks() {
+		return readBlocks;
+	}
+
+	public boolean next() throws IOException {
+
+		while (true) {
+
+			while (position < count) {
+				int i = position++;
+				if (accept(positions[i], mafs[i], rsqs[i])) {
+					variant = new InfoVariant(chromosome, positions[i], names[i], refs[i], alts[i], mafs[i], rsqs[i],
+							genotyped[i]);
+					return true;
+				}
+			}
+
+			if (!nextBlock()) {
+				return false;
+			}
+
+		}
+
+	}
+
+	public InfoVariant get() {
+		return variant;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private boolean accept(int pos, float maf, float rsq) {
+		if (pos < start || pos > end) {
+			return false;
+		}
+		if (!Float.isNaN(minRsq) && !(rsq >= minRsq)) {
+			return false;
+		}
+		if (!Float.isNaN(minMaf) && !(maf >= minMaf)) {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean skip(InfoColumnarBlock block) {
+		if (block.getMaxPosition() < start || block.getMinPosition() > end) {
+			return true;
+		}
+		// NaN: no variant has a value
+		if (!Float.isNaN(minRsq) && !(block.getMaxRsq() >= minRsq)) {
+			return true;
+		}
+		if (!Float.isNaN(minMaf) && !(block.getMaxMaf() >= minMaf)) {
+			return true;
+		}
+		return false;
+	}
+
+	private boolean nextBlock() throws IOException {
+
+		InfoColumnarBlock block = null;
+		while (blockIndex < blocks.size()) {
+			InfoColumnarBlock candidate = blocks.get(blockIndex++);
+			if (!skip(candidate)) {
+				block = candidate;
+				break;
+			}
+		}
+
+		if (block == null) {
+			return false;
+		}
+
+		byte[] bytes = new byte[block.getLength()];
+		file.seek(block.getOffset());
+		file.readFully(bytes);
+		readBlocks++;
+
+		count = block.getCount();
+		position = 0;
+		positions = new int[count];
+		mafs = new float[count];
+		rsqs = new float[count];
+		genotyped = new byte[count];
+		names = new String[count];
+		refs = new String[count];
+		alts = new String[count];
+
+		DataInputStream data = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+		int last = 0;
+		for (int i = 0; i < count; i++) {
+			last += data.readInt();
+			positions[i] = last;
+		}
+		for (int i = 0; i < count; i++) {
+			mafs[i] = data.readFloat();
+		}
+		for (int i = 0; i < count; i++) {
+			rsqs[i] = data.readFloat();
+		}
+		data.readFully(genotyped);
+		for (int i = 0; i < count; i++) {
+			names[i] = data.readUTF();
+		}
+		for (int i = 0; i < count; i++) {
+			refs[i] = data.readUTF();
+		}
+		for (int i = 0; i < count; i++) {
+			alts[i] = data.readUTF();
+		}
+		data.close();
+
+		return true;
+
+	}
+
+}
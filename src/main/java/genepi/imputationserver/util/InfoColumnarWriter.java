@@ -0,0 +1,285 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Vector;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Converts a merged minimac info file into a columnar binary file. The text
+ * is written into this stream (e.g. together with the info.gz file) and
+ * variants are stored in blocks. Each block contains the columns position,
+ * MAF, Rsq, genotyped flag, name and alleles and is compressed on its own.
+ * The index at the end of the file stores offset, position range and the
+ * min/max values of MAF and Rsq of each block, so readers can skip blocks
+ * (see {@link InfoColumnarReader}).
+ *
+ * Format: magic, version, blocks, index (chromosome, number of blocks,
+ * block entries), index offset, magic.
+ */
+public class InfoColumnarWriter extends OutputStream {
+
+	public static final String EXTENSION = ".info.col";
+
+	public static final int MAGIC = 0x494e464f;
+
+	public static final int VERSION = 1;
+
+	public static final int BLOCK_SIZE = 4096;
+
+	public static final byte IMPUTED = 0;
+
+	public static final byte GENOTYPED = 1;
+
+	public static final byte TYPED_ONLY = 2;
+
+	private DataOutputStream out;
+
+	// DataOutputStream.size() is an int and overflows past 2 GB
+	private FileMerger.CountingOutputStream counter;
+
+	private int blockSize = BLOCK_SIZE;
+
+	// current line of the text input
+	private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+	private boolean header = true;
+
+	private int columnSnp = 0;
+
+	private int columnRef = 1;
+
+	private int columnAlt = 2;
+
+	private int columnMaf = 4;
+
+	private int columnRsq = 6;
+
+	private int columnGenotyped = 7;
+
+	private String chromosome = "";
+
+	// columns of the current block
+	private int count = 0;
+
+	private int[] positions;
+
+	private float[] mafs;
+
+	private float[] rsqs;
+
+	private byte[] genotyped;
+
+	private String[] names;
+
+	private String[] refs;
+
+	private String[] alts;
+
+	private List<InfoColumnarBlock> blocks = new Vector<InfoColumnarBlock>();
+
+	private boolean closed = false;
+
+	public InfoColumnarWriter(OutputStream out) throws IOException {
+		counter = new FileMerger.CountingOutputStream(out);
+		this.out = new DataOutputStream(counter);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		setBlockSize(BLOCK_SIZE);
+	}
+
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+		positions = new int[blockSize];
+		mafs = new float[blockSize];
+		rsqs = new float[blockSize];
+		genotyped = new byte[blockSize];
+		names = new String[blockSize];
+		refs = new String[blockSize];
+		alts = new String[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (b == '\n') {
+			addLine(line.toString());
+			line.reset();
+		} else {
+			line.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int start = off;
+		for (int i = off; i < off + len; i++) {
+			if (b[i] == '\n') {
+				line.write(b, start, i - start);
+				addLine(line.toString());
+				line.reset();
+				start = i + 1;
+			}
+		}
+		line.write(b, start, off + len - start);
+	}
+
+	private void addLine(String text) throws IOException {
+
+		if (text.isEmpty()) {
+			return;
+		}
+
+		String[] tiles = text.split("\t");
+
+		if (header) {
+			header = false;
+			for (int i = 0; i < tiles.length; i++) {
+				String column = tiles[i];
+				if (column.equals("SNP")) {
+					columnSnp = i;
+				} else if (column.startsWith("REF")) {
+					columnRef = i;
+				} else if (column.startsWith("ALT") && !column.startsWith("ALT_")) {
+					columnAlt = i;
+				} else if (column.equals("MAF")) {
+					columnMaf = i;
+				} else if (column.equals("Rsq")) {
+					columnRsq = i;
+				} else if (column.equals("Genotyped")) {
+					columnGenotyped = i;
+				}
+			}
+			return;
+		}
+
+		// names are chr:pos or chr:pos:ref:alt
+		String name = tiles[columnSnp];
+		String[] snp = name.split(":");
+		int position = 0;
+		if (snp.length > 1) {
+			if (blocks.isEmpty() && count == 0) {
+				chromosome = snp[0];
+			}
+			try {
+				position = Integer.parseInt(snp[1]);
+			} catch (NumberFormatException e) {
+				position = 0;
+			}
+		}
+
+		positions[count] = position;
+		names[count] = name;
+		refs[count] = tiles[columnRef];
+		alts[count] = tiles[columnAlt];
+		mafs[count] = parseFloat(tiles[columnMaf]);
+		rsqs[count] = parseFloat(tiles[columnRsq]);
+		genotyped[count] = parseGenotyped(tiles[columnGenotyped]);
+		count++;
+
+		if (count == blockSize) {
+			writeBlock();
+		}
+
+	}
+
+	private void writeBlock() throws IOException {
+
+		InfoColumnarBlock block = new InfoColumnarBlock();
+		block.setOffset(counter.getCount());
+		block.setCount(count);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(bytes));
+
+		// positions as differences, they compress better
+		int last = 0;
+		for (int i = 0; i < count; i++) {
+			data.writeInt(positions[i] - last);
+			last = positions[i];
+			block.addPosition(positions[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			data.writeFloat(mafs[i]);
+			block.addMaf(mafs[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			data.writeFloat(rsqs[i]);
+			block.addRsq(rsqs[i]);
+		}
+		data.write(genotyped, 0, count);
+		for (int i = 0; i < count; i++) {
+			data.writeUTF(names[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			data.writeUTF(refs[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			data.writeUTF(alts[i]);
+		}
+		data.close();
+
+		block.setLength(bytes.size());
+		bytes.writeTo(out);
+		blocks.add(block);
+
+		count = 0;
+
+	}
+
+	/**
+	 * Writes the last block and the index and closes the output stream.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (line.size() > 0) {
+			addLine(line.toString());
+		}
+		if (count > 0) {
+			writeBlock();
+		}
+
+		long indexOffset = counter.getCount();
+		out.writeUTF(chromosome);
+		out.writeInt(blocks.size());
+		for (InfoColumnarBlock block : blocks) {
+			block.write(out);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+		out.close();
+
+	}
+
+	public int getBlocks() {
+		return blocks.size();
+	}
+
+	static float parseFloat(String value) {
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			// e.g. "-"
+			return Float.NaN;
+		}
+	}
+
+	static byte parseGenotyped(String value) {
+		if (value.equals("Genotyped")) {
+			return GENOTYPED;
+		} else if (value.equals("Typed_Only")) {
+			return TYPED_ONLY;
+		} else {
+			return IMPUTED;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package genepi.imputationserver.util;
+
+/**
+ * Variant of a columnar info file.
+ */
+public class InfoVariant {
+
+	private String chromosome;
+
+	private int position;
+
+	private String name;
+
+	private String ref;
+
+	private String alt;
+
+	private float maf;
+
+	private float rsq;
+
+	private byte genotyped;
+
+	public InfoVariant(String chromosome, int position, String name, String ref, String alt, float maf, float rsq,
+			byte genotyped) {
+		this.chromosome = chromosome;
+		this.position = position;
+		this.name = name;
+		this.ref = ref;
+		this.alt = alt;
+		this.maf = maf;
+		this.rsq = rsq;
+		this.genotyped = genotyped;
+	}
+
+	public String getChromosome() {
+		return chromosome;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getRef() {
+		return ref;
+	}
+
+	public String getAlt() {
+		return alt;
+	}
+
+	public float getMaf() {
+		return maf;
+	}
+
+	public float getRsq() {
+		return rsq;
+	}
+
+	public boolean isGenotyped() {
+		return genotyped == InfoColumnarWriter.GENOTYPED;
+	}
+
+	public boolean isTypedOnly() {
+		return genotyped == InfoColumnarWriter.TYPED_ONLY;
+	}
+
+	@Override
+	public String toString() {
+		String type = "Imputed";
+		if (isGenotyped()) {
+			type = "Genotyped";
+		} else if (isTypedOnly()) {
+			type = "Typed_Only";
+		}
+		return name + "\t" + ref + "\t" + alt + "\t" + maf + "\t" + rsq + "\t" + type;
+	}
+
+}
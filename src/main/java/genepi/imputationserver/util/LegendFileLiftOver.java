@@ -1,9 +1,16 @@
 package genepi.imputationserver.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Vector;
 
 import genepi.io.text.GzipLineWriter;
@@ -21,8 +28,24 @@ public class LegendFileLiftOver {
 		
 	}
 	
+	// estimated memory of lifted lines kept before a sorted run is written
+	public static final long MEMORY_BUDGET = 256L * 1024 * 1024;
+
+	// max number of runs merged at once
+	public static final int MAX_RUNS = 64;
+
 	public static LegendFileLiftOverResults liftOver(String input, String output, String chainFile, String tempDir,
 			String chromosome) throws IOException {
+		return liftOver(input, output, chainFile, tempDir, chromosome, MEMORY_BUDGET);
+	}
+
+	/**
+	 * Lifts over all snps and sorts them by their new position. Positions are
+	 * parsed once. If the lifted lines exceed the memory budget, sorted runs
+	 * are written into the temp directory and merged.
+	 */
+	public static LegendFileLiftOverResults liftOver(String input, String output, String chainFile, String tempDir,
+			String chromosome, long memoryBudget) throws IOException {
 
 		LineReader reader = new LineReader(input);
 		GzipLineWriter writer = new GzipLineWriter(output);
@@ -30,58 +53,259 @@ public class LegendFileLiftOver {
 		LiftOver liftOver = new LiftOver(new File(chainFile));
 
 		Vector<String> errors = new Vector<String>();
-		Vector<String> buffer = new Vector<String>();
-
-		// read file and perform lift over
-		while (reader.next()) {
-			String line = reader.get();
-			if (line.startsWith("id")) {
-				writer.write(line);
-			} else {
-
-				String[] tiles = line.split(" ", 3);
-				Interval source = new Interval("chr" + chromosome, Integer.parseInt(tiles[1]),
-						Integer.parseInt(tiles[1]) + 1, false, chromosome + ":" + tiles[1]);
-				Interval target = liftOver.liftOver(source);
-				if (target != null) {
-					if (source.getContig().equals(target.getContig())) {
-						buffer.add(tiles[0] + " " + target.getStart() + " " + tiles[2]);
+		SortBuffer buffer = new SortBuffer(tempDir, memoryBudget);
+		int snpsWritten = 0;
+
+		try {
+
+			// read file and perform lift over
+			while (reader.next()) {
+				String line = reader.get();
+				if (line.startsWith("id")) {
+					writer.write(line);
+				} else {
+
+					String[] tiles = line.split(" ", 3);
+					Interval source = new Interval("chr" + chromosome, Integer.parseInt(tiles[1]),
+							Integer.parseInt(tiles[1]) + 1, false, chromosome + ":" + tiles[1]);
+					Interval target = liftOver.liftOver(source);
+					if (target != null) {
+						if (source.getContig().equals(target.getContig())) {
+							buffer.add(target.getStart(), tiles[0] + " " + target.getStart() + " " + tiles[2]);
+						} else {
+							errors.add(target.getContig() + ":" + tiles[1] + "\t" + "LiftOver" + "\t"
+									+ "On different chromosome after LiftOver. SNP removed.");
+						}
 					} else {
-						errors.add(target.getContig() + ":" + tiles[1] + "\t" + "LiftOver" + "\t"
-								+ "On different chromosome after LiftOver. SNP removed.");
+						errors.add(
+								tiles[0] + ":" + tiles[1] + "\t" + "LiftOver" + "\t" + "LiftOver failed. SNP removed.");
 					}
-				} else {
-					errors.add(tiles[0] + ":" + tiles[1] + "\t" + "LiftOver" + "\t" + "LiftOver failed. SNP removed.");
 				}
+
 			}
 
+			// write file sorted by position
+			snpsWritten = buffer.writeSorted(writer);
+
+		} finally {
+			buffer.delete();
+			reader.close();
+			writer.close();
+		}
+
+		LegendFileLiftOverResults result = new LegendFileLiftOverResults();
+		result.errors = errors;
+		result.snpsWritten = snpsWritten;
+
+		return result;
+	}
+
+	/**
+	 * Sorts lines by position with a bounded memory. Equal positions keep
+	 * their input order.
+	 */
+	static class SortBuffer {
+
+		private String tempDir;
+
+		private long memoryBudget;
+
+		private int[] positions = new int[1024];
+
+		private String[] lines = new String[1024];
+
+		private int size = 0;
+
+		private long memory = 0;
+
+		private List<File> runs = new Vector<File>();
+
+		SortBuffer(String tempDir, long memoryBudget) {
+			this.tempDir = tempDir;
+			this.memoryBudget = memoryBudget;
 		}
 
-		// sort legend file by position
-		Collections.sort(buffer, new Comparator<String>() {
-			@Override
-			public int compare(String o1, String o2) {
-				String[] tiles1 = o1.split(" ", 3);
-				String[] tiles2 = o2.split(" ", 3);
-				int position1 = Integer.parseInt(tiles1[1]);
-				int position2 = Integer.parseInt(tiles2[1]);
-				return Integer.compare(position1, position2);
+		void add(int position, String line) throws IOException {
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+				lines = Arrays.copyOf(lines, size * 2);
+			}
+			positions[size] = position;
+			lines[size] = line;
+			size++;
+			// chars, string and array overhead
+			memory += 2L * line.length() + 64;
+			if (memory > memoryBudget) {
+				writeRun();
 			}
-		});
+		}
 
-		// write file
-		for (String line : buffer) {
-			writer.write(line);
+		// sort keys: position in the upper and input order in the lower bits
+		private long[] sortKeys() {
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = ((long) positions[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			return keys;
 		}
 
-		reader.close();
-		writer.close();
+		private void writeRun() throws IOException {
+
+			File run = createRun();
+			runs.add(run);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+			try {
+				out.writeInt(size);
+				for (long key : sortKeys()) {
+					int index = (int) key;
+					out.writeInt(positions[index]);
+					out.writeUTF(lines[index]);
+				}
+			} finally {
+				out.close();
+			}
+
+			clear();
+
+			// limits the number of files opened by the merge
+			if (runs.size() >= MAX_RUNS) {
+				File merged = createRun();
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged)));
+				try {
+					merge(null, out);
+				} finally {
+					out.close();
+				}
+				delete();
+				runs.add(merged);
+			}
+
+		}
+
+		private File createRun() throws IOException {
+			File directory = tempDir != null && !tempDir.isEmpty() ? new File(tempDir) : null;
+			return File.createTempFile("legend-run-", ".bin", directory);
+		}
+
+		private void clear() {
+			Arrays.fill(lines, 0, size, null);
+			size = 0;
+			memory = 0;
+		}
+
+		int writeSorted(GzipLineWriter writer) throws IOException {
+
+			// everything fits into memory
+			if (runs.isEmpty()) {
+				int count = size;
+				for (long key : sortKeys()) {
+					writer.write(lines[(int) key]);
+				}
+				clear();
+				return count;
+			}
+
+			if (size > 0) {
+				writeRun();
+			}
+
+			return merge(writer, null);
+
+		}
+
+		/**
+		 * Merges all runs into the writer or into a new run. Earlier runs come
+		 * first on equal positions.
+		 */
+		private int merge(GzipLineWriter writer, DataOutputStream out) throws IOException {
+
+			PriorityQueue<Run> queue = new PriorityQueue<Run>();
+			List<Run> opened = new Vector<Run>();
+			try {
+				int total = 0;
+				for (int i = 0; i < runs.size(); i++) {
+					Run run = new Run(runs.get(i), i);
+					opened.add(run);
+					total += run.remaining;
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+				if (out != null) {
+					out.writeInt(total);
+				}
+				int count = 0;
+				while (!queue.isEmpty()) {
+					Run run = queue.poll();
+					if (out != null) {
+						out.writeInt(run.position);
+						out.writeUTF(run.line);
+					} else {
+						writer.write(run.line);
+					}
+					count++;
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+				return count;
+			} finally {
+				for (Run run : opened) {
+					run.close();
+				}
+			}
+
+		}
+
+		void delete() {
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+
+	}
+
+	static class Run implements Comparable<Run> {
+
+		private DataInputStream in;
+
+		private int index;
+
+		private int remaining;
+
+		private int position;
+
+		private String line;
+
+		Run(File file, int index) throws IOException {
+			this.index = index;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			remaining = in.readInt();
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			position = in.readInt();
+			line = in.readUTF();
+			remaining--;
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			int result = Integer.compare(position, other.position);
+			return result != 0 ? result : Integer.compare(index, other.index);
+		}
 
-		LegendFileLiftOverResults result = new LegendFileLiftOverResults();
-		result.errors = errors;
-		result.snpsWritten = buffer.size();
-		
-		return result;
 	}
 
 }
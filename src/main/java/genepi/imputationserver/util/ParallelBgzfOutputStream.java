@@ -0,0 +1,254 @@
+package genepi.imputationserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Writes a BGZF file and compresses the blocks on several cores. Blocks are
+ * written in order, so the output is the same as with a single thread. BGZF
+ * files are valid gzip files and can be indexed with tabix.
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+
+	// same as bgzip, an uncompressed block fits always into one bgzf block
+	public static final int BLOCK_SIZE = 0xff00;
+
+	public static final int HEADER_LENGTH = 18;
+
+	public static final int FOOTER_LENGTH = 8;
+
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	private OutputStream out;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	private byte[] buffer = new byte[BLOCK_SIZE];
+
+	private int count = 0;
+
+	private ExecutorService executor;
+
+	private boolean ownExecutor = false;
+
+	// max number of blocks in memory
+	private int maxPending;
+
+	private LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+
+	private boolean finished = false;
+
+	private boolean eofMarker = true;
+
+	// compressed bytes written so far
+	private long compressedSize = 0;
+
+	private BgzfPartIndex index = null;
+
+	public ParallelBgzfOutputStream(OutputStream out, int threads) {
+		this(out, Executors.newFixedThreadPool(threads), threads * 4);
+		ownExecutor = true;
+	}
+
+	// executor can be shared by several streams
+	public ParallelBgzfOutputStream(OutputStream out, ExecutorService executor, int maxPending) {
+		this.out = out;
+		this.executor = executor;
+		this.maxPending = Math.max(maxPending, 1);
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	// without eof marker the output can be concatenated with other parts
+	public void setEofMarker(boolean eofMarker) {
+		this.eofMarker = eofMarker;
+	}
+
+	// index is updated with every written block
+	public void setIndex(BgzfPartIndex index) {
+		this.index = index;
+	}
+
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			submit();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				submit();
+			}
+			int length = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, length);
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	/**
+	 * Writes all pending blocks and the eof marker (if enabled). The output
+	 * stream stays open.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			if (count > 0) {
+				submit();
+			}
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			if (eofMarker) {
+				out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+				compressedSize += BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+			}
+			out.flush();
+		} finally {
+			if (ownExecutor) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void submit() throws IOException {
+
+		final byte[] data = buffer;
+		final int length = count;
+		PendingBlock block = new PendingBlock();
+		block.data = data;
+		block.length = length;
+		block.compressed = executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return compress(data, length, level);
+			}
+		});
+		pending.add(block);
+
+		buffer = new byte[BLOCK_SIZE];
+		count = 0;
+
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+
+	}
+
+	// blocks are written in order
+	private void writeNext() throws IOException {
+		PendingBlock block = pending.removeFirst();
+		try {
+			byte[] compressed = block.compressed.get();
+			if (index != null) {
+				index.addBlock(compressedSize, block.data, 0, block.length);
+			}
+			out.write(compressed);
+			compressedSize += compressed.length;
+		} catch (InterruptedException e) {
+			throw new IOException("Compression interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed.", e.getCause());
+		}
+	}
+
+	static byte[] compress(byte[] data, int length, int level) {
+
+		byte[] block = new byte[MAX_BLOCK_SIZE];
+		int maxSize = MAX_BLOCK_SIZE - HEADER_LENGTH - FOOTER_LENGTH;
+
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int size = deflater.deflate(block, HEADER_LENGTH, maxSize);
+		boolean fits = deflater.finished();
+		deflater.end();
+
+		// data is not compressible, stored blocks fit always
+		if (!fits) {
+			deflater = new Deflater(Deflater.NO_COMPRESSION, true);
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			size = deflater.deflate(block, HEADER_LENGTH, maxSize);
+			deflater.end();
+		}
+
+		int blockSize = HEADER_LENGTH + size + FOOTER_LENGTH;
+
+		// gzip header with extra field BC for the block size
+		block[0] = 31;
+		block[1] = (byte) 139;
+		block[2] = 8;
+		block[3] = 4;
+		block[9] = (byte) 255;
+		block[10] = 6;
+		block[12] = 'B';
+		block[13] = 'C';
+		block[14] = 2;
+		writeShort(block, 16, blockSize - 1);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt(block, HEADER_LENGTH + size, (int) crc.getValue());
+		writeInt(block, HEADER_LENGTH + size + 4, length);
+
+		byte[] result = new byte[blockSize];
+		System.arraycopy(block, 0, result, 0, blockSize);
+		return result;
+
+	}
+
+	private static void writeShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		writeShort(buffer, offset, value);
+		writeShort(buffer, offset + 2, value >>> 16);
+	}
+
+	private static class PendingBlock {
+
+		private Future<byte[]> compressed;
+
+		private byte[] data;
+
+		private int length;
+
+	}
+
+}
@@ -2,26 +2,45 @@ package genepi.imputationserver.util;
 
 import genepi.hadoop.HadoopJob;
 import genepi.hadoop.HadoopUtil;
+import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.common.WorkflowContext;
 import genepi.hadoop.common.WorkflowStep;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobStatus;
 
 public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
+	// max number of jobs waiting for a thread, further submissions block
+	public static int QUEUE_SIZE = 100;
+
+	// min and max interval between two status polls
+	public static long MIN_POLL_INTERVAL = 2000;
+
+	public static long MAX_POLL_INTERVAL = 30000;
+
 	private Map<String, HadoopJob> jobs;
 
+	private Map<String, CompletableFuture<Boolean>> futures;
+
 	private BlockingQueue<Runnable> queueThreadPool;
 
 	private ThreadPoolExecutor threadPool;
@@ -40,7 +59,15 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
 	private WorkflowContext context;
 
-	private boolean canceled = false;
+	private volatile boolean canceled = false;
+
+	private long pollInterval = MIN_POLL_INTERVAL;
+
+	private long nextPoll = 0;
+
+	private AdmissionController admissionController = null;
+
+	private JobClient client = null;
 
 	@Override
 	public void setup(WorkflowContext context) {
@@ -48,63 +75,120 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 	}
 
 	public ParallelHadoopJobStep(int threads) {
-		queueThreadPool = new ArrayBlockingQueue<Runnable>(100);
+		queueThreadPool = new LinkedBlockingQueue<Runnable>(QUEUE_SIZE);
 
-		threadPool = new ThreadPoolExecutor(threads, threads, 10,
-				TimeUnit.SECONDS, queueThreadPool);
+		threadPool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, queueThreadPool,
+				new BlockingSubmissionPolicy());
 
-		jobs = new HashMap<String, HadoopJob>();
-		states = new HashMap<HadoopJob, Integer>();
+		jobs = new ConcurrentHashMap<String, HadoopJob>();
+		futures = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+		states = new ConcurrentHashMap<HadoopJob, Integer>();
 	}
 
 	protected void waitForAll() throws InterruptedException {
 
-		while (threadPool.getActiveCount() > 0) {
-			Thread.sleep(500);
+		CompletableFuture<Void> all = CompletableFuture
+				.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]));
+		try {
+			all.get();
+		} catch (ExecutionException e) {
+			// failed jobs are reported by onJobFinish
+		} catch (CancellationException e) {
+			// killed
 		}
+
+		// wait until killed jobs are terminated
 		threadPool.shutdown();
+		threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 
 	}
 
-	protected void executeJarInBackground(String id, WorkflowContext context,
-			HadoopJob hadoopJob) {
-		BackgroundHadoopJob job = new BackgroundHadoopJob(id, hadoopJob);
-		job.setContext(context);
-		jobs.put(id, hadoopJob);
-		states.put(hadoopJob, WAIT);
-		Future<?> future = threadPool.submit(job);
-
+	protected void executeJarInBackground(String id, WorkflowContext context, HadoopJob hadoopJob) {
+		executeJarInBackground(id, context, hadoopJob, null, null, 0);
 	}
 
-	class BackgroundHadoopJob implements Runnable {
+	// user, panel and weight (e.g. number of map tasks) are used for admission
+	protected void executeJarInBackground(final String id, final WorkflowContext context,
+			final HadoopJob hadoopJob, final String user, final String panel, final int weight) {
+		jobs.put(id, hadoopJob);
+		states.put(hadoopJob, WAIT);
 
-		private WorkflowContext context;
+		// blocks if the queue is full
+		CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				return runJob(id, hadoopJob, context, user, panel, weight);
+			}
+		}, threadPool);
+		futures.put(id, future);
 
-		private String id;
+	}
 
-		private HadoopJob job;
+	protected boolean runJob(String id, HadoopJob job, WorkflowContext context, String user, String panel,
+			int weight) {
 
-		public BackgroundHadoopJob(String id, HadoopJob job) {
-			this.id = id;
-			this.job = job;
+		if (canceled) {
+			return false;
 		}
 
-		public void setContext(WorkflowContext context) {
-			this.context = context;
+		// wait until the cluster has capacity for this job
+		AdmissionController.Lease lease = null;
+		if (admissionController != null && user != null) {
+			try {
+				lease = admissionController.acquire(user, panel, weight);
+			} catch (InterruptedException e) {
+				return false;
+			} catch (IOException e) {
+				log.warn("Admission of job " + id + " failed: " + e.getMessage());
+			}
 		}
 
-		public WorkflowContext getContext() {
-			return context;
-		}
+		try {
 
-		@Override
-		public void run() {
+			if (canceled) {
+				return false;
+			}
 
 			onJobStart(id, context);
 			boolean successful = job.execute();
+
+			// final state is known without asking the jobtracker
+			states.put(job, successful ? OK : FAILED);
+
 			onJobFinish(id, successful, context);
+			return successful;
 
+		} finally {
+			if (lease != null) {
+				lease.release();
+			}
 		}
+
+	}
+
+	public void setAdmissionController(AdmissionController admissionController) {
+		this.admissionController = admissionController;
+		if (admissionController != null) {
+			admissionController.setLog(log);
+		}
+	}
+
+	// waits for free space in the queue instead of rejecting the job
+	class BlockingSubmissionPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Thread pool is shut down.");
+			}
+			try {
+				executor.getQueue().put(runnable);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+
 	}
 
 	protected synchronized void onJobFinish(String id, boolean successful,
@@ -148,6 +232,11 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
 		}
 
+		// jobs waiting in the queue are never started
+		for (CompletableFuture<Boolean> future : futures.values()) {
+			future.cancel(true);
+		}
+
 		threadPool.purge();
 		threadPool.shutdownNow();
 
@@ -161,62 +250,116 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 		return states.get(job);
 	}
 
+	long getPollInterval() {
+		return pollInterval;
+	}
+
 	@Override
 	public void updateProgress() {
 
-		for (HadoopJob job : jobs.values()) {
-
-			int state = WAIT;
-
-			if (job != null) {
-
-				String hadoopJobId = job.getJobId();
-
-				if (hadoopJobId != null) {
+		// backoff: poll less often while nothing changes
+		long now = System.currentTimeMillis();
+		if (now < nextPoll) {
+			return;
+		}
 
-					RunningJob hadoopJob = HadoopUtil.getInstance().getJob(
-							hadoopJobId);
-					try {
+		boolean changed = false;
 
-						if (hadoopJob != null) {
+		// one call to the jobtracker for all unfinished jobs, none if all jobs
+		// of this step are finished
+		Map<String, JobStatus> statuses = null;
+		boolean submitted = false;
+		for (HadoopJob job : jobs.values()) {
+			Integer state = states.get(job);
+			if (job.getJobId() != null && (state == null || (state != OK && state != FAILED))) {
+				submitted = true;
+			}
+		}
+		if (submitted) {
+			try {
+				statuses = getJobStatuses();
+			} catch (IOException e) {
+				log.warn("Polling job states failed: " + e.getMessage());
+			}
+		}
 
-							if (hadoopJob.isComplete()) {
+		for (HadoopJob job : jobs.values()) {
 
-								if (hadoopJob.isSuccessful()) {
-									state = OK;
-								} else {
-									state = FAILED;
-								}
+			Integer oldState = states.get(job);
 
-							} else {
+			// finished jobs are not polled again
+			if (oldState != null && (oldState == OK || oldState == FAILED)) {
+				continue;
+			}
 
-								if (hadoopJob.getJobStatus().mapProgress() > 0) {
+			int state = WAIT;
 
-									state = RUNNING;
+			String hadoopJobId = job.getJobId();
 
-								} else {
-									state = WAIT;
-								}
+			// states are kept if the jobtracker is not reachable
+			if (hadoopJobId != null && statuses == null) {
+				continue;
+			}
 
-							}
+			if (hadoopJobId != null) {
 
-						} else {
-							state = WAIT;
-						}
-					} catch (IOException e) {
+				JobStatus status = statuses.get(hadoopJobId);
 
-						state = WAIT;
+				// finished jobs are not returned, their final state is set by
+				// runJob
+				if (status == null) {
+					continue;
+				}
 
-					}
+				int runState = status.getRunState();
 
+				if (runState == JobStatus.SUCCEEDED) {
+					state = OK;
+				} else if (runState == JobStatus.FAILED || runState == JobStatus.KILLED) {
+					state = FAILED;
+				} else if (status.mapProgress() > 0) {
+					state = RUNNING;
+				} else {
+					state = WAIT;
 				}
 
 			}
 
+			// state could be set by runJob in the meantime
+			Integer currentState = states.get(job);
+			if (currentState != null && (currentState == OK || currentState == FAILED)) {
+				continue;
+			}
+
+			if (oldState == null || oldState != state) {
+				changed = true;
+			}
 			states.put(job, state);
 
 		}
 
+		if (changed) {
+			pollInterval = MIN_POLL_INTERVAL;
+		} else {
+			pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+		}
+		nextPoll = now + pollInterval;
+
+	}
+
+	private Map<String, JobStatus> getJobStatuses() throws IOException {
+		if (client == null) {
+			client = new JobClient(new JobConf(HdfsUtil.getConfiguration()));
+		}
+		Map<String, JobStatus> statuses = new HashMap<String, JobStatus>();
+		// only prepared and running jobs, not the retired jobs of all users
+		JobStatus[] unfinishedJobs = client.jobsToComplete();
+		if (unfinishedJobs != null) {
+			for (JobStatus status : unfinishedJobs) {
+				statuses.put(status.getJobID().toString(), status);
+			}
+		}
+		return statuses;
 	}
 
 }
@@ -0,0 +1,197 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import genepi.hadoop.HdfsUtil;
+
+/**
+ * Reads a list of hdfs files in order. The next files are opened in the
+ * background and their first bytes are buffered while the current file is
+ * read, so open latency and the first block fetch do not add up. Memory is
+ * bounded by the number of prefetched files and the buffer size.
+ */
+public class PrefetchingHdfsReader {
+
+	public static final int PREFETCH = 4;
+
+	public static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private List<String> files;
+
+	private int prefetch = PREFETCH;
+
+	private int bufferSize = BUFFER_SIZE;
+
+	// missing files are returned as null
+	private boolean optional = false;
+
+	private FileSystem fileSystem;
+
+	private ExecutorService executor;
+
+	private LinkedList<Future<InputStream>> pending = new LinkedList<Future<InputStream>>();
+
+	private int next = 0;
+
+	private int current = -1;
+
+	private InputStream stream;
+
+	private volatile boolean closed = false;
+
+	public PrefetchingHdfsReader(List<String> files) {
+		this.files = files;
+	}
+
+	public void setPrefetch(int prefetch) {
+		this.prefetch = Math.max(prefetch, 1);
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public void setOptional(boolean optional) {
+		this.optional = optional;
+	}
+
+	public boolean next() throws IOException {
+
+		if (executor == null) {
+			fileSystem = FileSystem.get(HdfsUtil.getConfiguration());
+			executor = Executors.newFixedThreadPool(prefetch);
+		}
+
+		current++;
+		if (current >= files.size()) {
+			close();
+			return false;
+		}
+
+		while (next < files.size() && next <= current + prefetch) {
+			final String file = files.get(next);
+			pending.add(executor.submit(new Callable<InputStream>() {
+				@Override
+				public InputStream call() throws Exception {
+					// waiting prefetches are skipped after close
+					if (closed) {
+						return null;
+					}
+					return open(file);
+				}
+			}));
+			next++;
+		}
+
+		try {
+			stream = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Reading " + getFilename() + " interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Reading " + getFilename() + " failed: " + e.getCause().getMessage(), e.getCause());
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the stream of the current file, the caller has to close it. Null
+	 * if an optional file does not exist.
+	 */
+	public InputStream get() {
+		return stream;
+	}
+
+	public String getFilename() {
+		return files.get(current);
+	}
+
+	/**
+	 * Closes all prefetched streams. Waiting prefetches are skipped, running
+	 * ones are not interrupted: they are waited for and their streams closed.
+	 */
+	public void close() {
+		if (executor == null) {
+			return;
+		}
+		closed = true;
+		executor.shutdown();
+		for (Future<InputStream> future : pending) {
+			// cancel would not wait for running prefetches
+			try {
+				InputStream in = future.get();
+				if (in != null) {
+					in.close();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				// stream was not opened
+			}
+		}
+		pending.clear();
+	}
+
+	protected InputStream open(String file) throws IOException {
+
+		InputStream in;
+		try {
+			in = fileSystem.open(new Path(file));
+		} catch (FileNotFoundException e) {
+			if (optional) {
+				return null;
+			}
+			throw e;
+		}
+
+		// buffer grows up to the buffer size, e.g. for small index files
+		byte[] buffer = new byte[Math.min(bufferSize, 64 * 1024)];
+		int length = 0;
+		boolean eof = false;
+		try {
+			while (!eof) {
+				if (length == buffer.length) {
+					if (length >= bufferSize) {
+						break;
+					}
+					buffer = Arrays.copyOf(buffer, (int) Math.min(bufferSize, length * 2L));
+				}
+				int read = in.read(buffer, length, buffer.length - length);
+				if (read < 0) {
+					eof = true;
+				} else {
+					length += read;
+				}
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+
+		// small files are read completely
+		if (eof) {
+			in.close();
+			return new ByteArrayInputStream(buffer, 0, length);
+		}
+
+		return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), in);
+
+	}
+
+}
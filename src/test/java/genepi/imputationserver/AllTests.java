@@ -7,9 +7,32 @@ import org.junit.runners.Suite.SuiteClasses;
 import genepi.imputationserver.steps.FastQualityControlTest;
 import genepi.imputationserver.steps.ImputationMinimac3Test;
 import genepi.imputationserver.steps.InputValidationTest;
+import genepi.imputationserver.steps.fastqc.ChunkBoundariesTest;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkCheckpointTest;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkCommitterTest;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkInputFormatTest;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkProfileTest;
+import genepi.imputationserver.steps.imputationMinimac3.PanelCacheTest;
+import genepi.imputationserver.steps.imputationMinimac3.StragglerDetectorTest;
+import genepi.imputationserver.steps.vcf.BgenConverterTest;
+import genepi.imputationserver.steps.vcf.ChunkManifestTest;
+import genepi.imputationserver.steps.vcf.RsqFilterTest;
+import genepi.imputationserver.util.AdmissionControllerTest;
+import genepi.imputationserver.util.AesGcmStreamTest;
+import genepi.imputationserver.util.FileMergerTest;
+import genepi.imputationserver.util.InfoColumnarTest;
+import genepi.imputationserver.util.LegendFileLiftOverTest;
+import genepi.imputationserver.util.ParallelHadoopJobStepTest;
+import genepi.imputationserver.util.PrefetchingHdfsReaderTest;
 
 @RunWith(Suite.class)
-@SuiteClasses({ InputValidationTest.class, FastQualityControlTest.class, ImputationMinimac3Test.class })
+@SuiteClasses({ InputValidationTest.class, FastQualityControlTest.class, ImputationMinimac3Test.class,
+		ChunkManifestTest.class, AdmissionControllerTest.class, FileMergerTest.class, AesGcmStreamTest.class,
+		InfoColumnarTest.class, RsqFilterTest.class, BgenConverterTest.class,
+		LegendFileLiftOverTest.class, ChunkInputFormatTest.class,
+		ChunkCheckpointTest.class, ChunkCommitterTest.class, StragglerDetectorTest.class,
+		ChunkBoundariesTest.class, ParallelHadoopJobStepTest.class,
+		ChunkProfileTest.class, PanelCacheTest.class, PrefetchingHdfsReaderTest.class })
 public class AllTests {
 
 }
@@ -3,14 +3,19 @@ package genepi.imputationserver.steps;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
 
 import org.junit.Test;
 
 import genepi.hadoop.common.WorkflowStep;
+import genepi.imputationserver.steps.vcf.ChunkManifest;
+import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.imputationserver.steps.vcf.VcfFileUtil;
 import genepi.imputationserver.util.WorkflowTestContext;
 import genepi.io.FileUtil;
 import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
@@ -156,6 +161,94 @@ public class FastQualityControlTest extends TestCase {
 		FileUtil.deleteDirectory("test-data/tmp");
 	}
 
+	public void testMergeWeakChunks() throws IOException {
+
+		String configFolder = "test-data/configs/hapmap-chr1";
+		String inputFolder = "test-data/data/single";
+
+		// small chunks, the first one has < 3 SNPs in the reference
+		WorkflowTestContext context = buildContext(inputFolder, "hapmap2");
+		context.setInput("chunksize", "200000");
+		String out = context.getOutput("chunkFileDir");
+
+		FastQualityControlMock qcStats = new FastQualityControlMock(configFolder);
+		run(context, qcStats);
+
+		List<String> chunks = getChunks(out);
+		assertTrue(chunks.contains("chunk_1_0000400001_0000600000"));
+		assertTrue(chunks.contains("chunk_1_0000600001_0000800000"));
+		assertFalse(context.hasInMemory("merged with the following chunk"));
+
+		FileUtil.deleteDirectory("test-data/tmp");
+
+		// same data with chunks.merge=true
+		String mergeConfigFolder = createMergeConfig(configFolder, "test-data/tmp-merge");
+
+		context = buildContext(inputFolder, "hapmap2");
+		context.setInput("chunksize", "200000");
+
+		qcStats = new FastQualityControlMock(mergeConfigFolder);
+		run(context, qcStats);
+
+		assertTrue(context.hasInMemory("merged with the following chunk"));
+
+		// weak chunk is extended to the end of the following chunk, merged
+		// chunks are limited to 2 x chunksize
+		List<String> mergedChunks = getChunks(out);
+		assertTrue(mergedChunks.contains("chunk_1_0000400001_0000800000"));
+		assertFalse(mergedChunks.contains("chunk_1_0000400001_0000600000"));
+		assertFalse(mergedChunks.contains("chunk_1_0000600001_0000800000"));
+		assertTrue(mergedChunks.size() < chunks.size());
+
+		for (String chunk : mergedChunks) {
+			String[] tiles = chunk.split("_");
+			int start = Integer.parseInt(tiles[2]);
+			int end = Integer.parseInt(tiles[3]);
+			assertTrue(end - start + 1 <= 400000);
+		}
+
+		FileUtil.deleteDirectory("test-data/tmp");
+		FileUtil.deleteDirectory("test-data/tmp-merge");
+
+	}
+
+	// passed and excluded chunks of chr1
+	protected List<String> getChunks(String out) throws IOException {
+		List<String> chunks = new Vector<String>();
+		ChunkManifest manifest = ChunkManifest.read(FileUtil.path(out, "1"));
+		for (VcfChunk chunk : manifest.getChunks()) {
+			chunks.add(chunk.getId());
+		}
+		LineReader reader = new LineReader(FileUtil.path(out, "chunks-excluded.txt"));
+		while (reader.next()) {
+			if (!reader.get().startsWith("#")) {
+				chunks.add(reader.get().split("\t")[0]);
+			}
+		}
+		reader.close();
+		return chunks;
+	}
+
+	protected String createMergeConfig(String configFolder, String folder) throws IOException {
+
+		FileUtil.createDirectory(folder);
+
+		LineWriter config = new LineWriter(FileUtil.path(folder, "job.config"));
+		config.write(FileUtil.readFileAsString(FileUtil.path(configFolder, "job.config")).trim());
+		config.write("chunks.merge=true");
+		config.close();
+
+		// reference panels are used from the original folder
+		String refPanels = new File(configFolder, "ref-panels").getAbsolutePath();
+		LineWriter panels = new LineWriter(FileUtil.path(folder, "panels.txt"));
+		panels.write(FileUtil.readFileAsString(FileUtil.path(configFolder, "panels.txt")).replaceAll("ref-panels",
+				refPanels));
+		panels.close();
+
+		return folder;
+
+	}
+
 	public void testCountSitesForOneChunkedContig() throws IOException {
 
 		String configFolder = "test-data/configs/hapmap-chr1";
@@ -248,14 +341,9 @@ public class FastQualityControlTest extends TestCase {
 		// run and test
 		run(context, qcStats);
 
-		LineReader reader = new LineReader(FileUtil.path(out, "1"));
-
-		int count = 0;
-		while (reader.next()) {
-			count++;
-		}
+		ChunkManifest manifest = ChunkManifest.read(FileUtil.path(out, "1"));
 
-		assertEquals(13, count);
+		assertEquals(13, manifest.size());
 
 		FileUtil.deleteDirectory(new File(out));
 	}
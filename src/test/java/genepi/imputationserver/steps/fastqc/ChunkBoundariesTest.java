@@ -0,0 +1,143 @@
+package genepi.imputationserver.steps.fastqc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ChunkBoundariesTest extends TestCase {
+
+	public static final int BIN_SIZE = 1000;
+
+	public void testDenseAndSparseRegions() {
+
+		// dense bins 0-19, sparse bins 20-99
+		Map<Integer, Integer> variants = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		for (int bin = 0; bin < 100; bin++) {
+			variants.put(bin, bin < 20 ? 100 : 1);
+			reference.put(bin, 10);
+		}
+
+		ChunkBoundaries boundaries = ChunkBoundaries.createAdaptive(variants, reference, 50, BIN_SIZE, 10000, 2000,
+				50000);
+		assertTrue(boundaries.isAdaptive());
+
+		int chunks = countChunks(boundaries);
+		assertTrue(chunks > 1);
+
+		// chunks are contiguous and within the bounds
+		assertEquals(1, boundaries.getStart(0));
+		for (int i = 0; i < chunks; i++) {
+			int length = boundaries.getEnd(i) - boundaries.getStart(i) + 1;
+			assertTrue(length >= 2000);
+			assertTrue(length <= 50000);
+			if (i > 0) {
+				assertEquals(boundaries.getEnd(i - 1) + 1, boundaries.getStart(i));
+			}
+		}
+		assertEquals(100000, boundaries.getEnd(chunks - 1));
+
+		// dense regions are split, sparse regions are merged
+		int dense = boundaries.getChunkNumber(10000);
+		assertTrue(boundaries.getEnd(dense) - boundaries.getStart(dense) + 1 < 10000);
+		int sparse = boundaries.getChunkNumber(60000);
+		assertTrue(boundaries.getEnd(sparse) - boundaries.getStart(sparse) + 1 > 10000);
+
+	}
+
+	public void testMaxSize() {
+
+		// one variant in the first and one in the last bin
+		Map<Integer, Integer> variants = new HashMap<Integer, Integer>();
+		variants.put(0, 1);
+		variants.put(99, 1);
+
+		ChunkBoundaries boundaries = ChunkBoundaries.createAdaptive(variants, new HashMap<Integer, Integer>(), 1,
+				BIN_SIZE, 10000, 1000, 20000);
+
+		// the first bin reaches the budget, the empty bins are cut by the max
+		// size
+		assertEquals(6, countChunks(boundaries));
+		assertEquals(1000, boundaries.getEnd(0));
+		for (int i = 1; i < 5; i++) {
+			assertEquals(20000, boundaries.getEnd(i) - boundaries.getStart(i) + 1);
+		}
+		assertEquals(100000, boundaries.getEnd(5));
+
+	}
+
+	public void testLastChunk() {
+
+		Map<Integer, Integer> variants = new HashMap<Integer, Integer>();
+		for (int bin = 0; bin <= 6; bin++) {
+			variants.put(bin, 1);
+		}
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+
+		// remaining bin is added to the last chunk
+		ChunkBoundaries boundaries = ChunkBoundaries.createAdaptive(variants, reference, 1, BIN_SIZE, 3000, 3000,
+				5000);
+		assertEquals(2, countChunks(boundaries));
+		assertEquals(1, boundaries.getStart(0));
+		assertEquals(3000, boundaries.getEnd(0));
+		assertEquals(3001, boundaries.getStart(1));
+		assertEquals(7000, boundaries.getEnd(1));
+
+		// last chunk would exceed the max size
+		boundaries = ChunkBoundaries.createAdaptive(variants, reference, 1, BIN_SIZE, 3000, 3000, 3000);
+		assertEquals(3, countChunks(boundaries));
+		assertEquals(6001, boundaries.getStart(2));
+		assertEquals(7000, boundaries.getEnd(2));
+
+	}
+
+	public void testFirstPositionOfBin() {
+
+		// position 60000 is the first position of bin 60
+		Map<Integer, Integer> variants = new HashMap<Integer, Integer>();
+		variants.put(60, 5);
+		variants.put(61, 5);
+		variants.put(62, 5);
+
+		ChunkBoundaries boundaries = ChunkBoundaries.createAdaptive(variants, new HashMap<Integer, Integer>(), 1,
+				BIN_SIZE, 1000, 1000, 10000);
+
+		assertEquals(3, countChunks(boundaries));
+		assertEquals(0, boundaries.getChunkNumber(60000));
+		assertEquals(60000, boundaries.getStart(0));
+		assertEquals(61000, boundaries.getEnd(0));
+		assertEquals(0, boundaries.getChunkNumber(61000));
+		assertEquals(1, boundaries.getChunkNumber(61001));
+		assertEquals(2, boundaries.getChunkNumber(62999));
+
+		// every position of a bin is inside its chunk
+		for (int position = 60000; position < 63000; position++) {
+			int chunk = boundaries.getChunkNumber(position);
+			assertTrue(position >= boundaries.getStart(chunk));
+			assertTrue(position <= boundaries.getEnd(chunk));
+		}
+
+	}
+
+	public void testFixedChunks() {
+
+		ChunkBoundaries boundaries = new ChunkBoundaries(20000000);
+		assertFalse(boundaries.isAdaptive());
+		assertEquals(0, boundaries.getChunkNumber(1));
+		assertEquals(0, boundaries.getChunkNumber(20000000));
+		assertEquals(1, boundaries.getChunkNumber(20000001));
+		assertEquals(20000001, boundaries.getStart(1));
+		assertEquals(40000000, boundaries.getEnd(1));
+
+	}
+
+	private int countChunks(ChunkBoundaries boundaries) {
+		int chunks = 0;
+		while (boundaries.hasChunk(chunks)) {
+			chunks++;
+		}
+		return chunks;
+	}
+
+}
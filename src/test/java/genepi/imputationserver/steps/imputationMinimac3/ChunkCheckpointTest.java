@@ -0,0 +1,144 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+import junit.framework.TestCase;
+
+public class ChunkCheckpointTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/checkpoint";
+
+	public static final String CHECKPOINTS = FOLDER + "/checkpoints";
+
+	private Configuration configuration;
+
+	@Override
+	protected void setUp() throws Exception {
+		// local file system
+		configuration = HdfsUtil.getConfiguration();
+		HdfsUtil.setDefaultConfiguration(new Configuration());
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		HdfsUtil.setDefaultConfiguration(configuration);
+	}
+
+	public void testRestore() throws IOException {
+
+		String output1 = FileUtil.path(FOLDER, "job-1");
+		String chunkFolder1 = ChunkCommitter.getChunkFolder(output1, "chunk_20_1_20000000");
+		FileUtil.createDirectory(chunkFolder1);
+		List<String> files = new Vector<String>();
+		files.add(FileUtil.path(chunkFolder1, "chunk_20_1_20000000.info"));
+		files.add(FileUtil.path(chunkFolder1, "chunk_20_1_20000000.data.dose.vcf.gz"));
+		for (String file : files) {
+			LineWriter writer = new LineWriter(file);
+			writer.write(file);
+			writer.close();
+		}
+
+		ChunkCheckpoint checkpoint = new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-1");
+		String key = checkpoint.getKey(createChunk(), "panel", "eagle:5:500000");
+		checkpoint.save(key, chunkFolder1);
+
+		// checkpoints are only reused in resume mode
+		String output2 = FileUtil.path(FOLDER, "job-2");
+		String attemptFolder2 = ChunkCommitter.getAttemptFolder(output2, "chunk_20_1_20000000", "attempt_1");
+		assertFalse(new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-2").restore(key, attemptFolder2));
+
+		// jobs of other users can not be resumed
+		ChunkCheckpoint otherUser = new ChunkCheckpoint(CHECKPOINTS, "user-2", "job-2");
+		otherUser.setResumeJob("job-1");
+		assertFalse(otherUser.restore(key, attemptFolder2));
+
+		// other chunk or parameters
+		ChunkCheckpoint resumed = new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-2");
+		resumed.setResumeJob("job-1");
+		assertFalse(resumed.restore(checkpoint.getKey(createChunk(), "panel", "eagle:1:500000"), attemptFolder2));
+
+		// outputs are copied, the resumed job keeps its files
+		assertTrue(resumed.restore(key, attemptFolder2));
+		String chunkFolder2 = ChunkCommitter.getChunkFolder(output2, "chunk_20_1_20000000");
+		assertTrue(ChunkCommitter.commit(attemptFolder2, chunkFolder2));
+		resumed.save(key, chunkFolder2);
+		for (String file : files) {
+			String target = FileUtil.path(chunkFolder2, FileUtil.getFilename(file));
+			assertTrue(HdfsUtil.exists(file));
+			assertTrue(HdfsUtil.exists(target));
+			assertEquals(FileUtil.readFileAsString(file), FileUtil.readFileAsString(target));
+		}
+
+		// outputs of failed jobs are temp files and deleted with the job
+		HdfsUtil.delete(output1);
+		HdfsUtil.delete(output2);
+
+		// a resumed job can be resumed again
+		String output3 = FileUtil.path(FOLDER, "job-3");
+		String attemptFolder3 = ChunkCommitter.getAttemptFolder(output3, "chunk_20_1_20000000", "attempt_1");
+		ChunkCheckpoint resumedAgain = new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-3");
+		resumedAgain.setResumeJob("job-2");
+		assertTrue(resumedAgain.restore(key, attemptFolder3));
+		for (String file : files) {
+			String target = FileUtil.path(attemptFolder3, FileUtil.getFilename(file));
+			assertEquals(file, FileUtil.readFileAsString(target).trim());
+		}
+
+		// checkpoints of the first job are still available
+		String output4 = FileUtil.path(FOLDER, "job-4");
+		String attemptFolder4 = ChunkCommitter.getAttemptFolder(output4, "chunk_20_1_20000000", "attempt_1");
+		ChunkCheckpoint resumedFirst = new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-4");
+		resumedFirst.setResumeJob("job-1");
+		assertTrue(resumedFirst.restore(key, attemptFolder4));
+
+		// deleted checkpoints are not restored
+		ChunkCheckpoint.delete(CHECKPOINTS, "user-1", "job-1");
+		assertFalse(resumedFirst.restore(key, attemptFolder4));
+
+	}
+
+	public void testCleanup() throws IOException, InterruptedException {
+
+		String chunkFolder = FileUtil.path(FOLDER, "chunk_20_1_20000000");
+		FileUtil.createDirectory(chunkFolder);
+		LineWriter writer = new LineWriter(FileUtil.path(chunkFolder, "chunk_20_1_20000000.info"));
+		writer.write("SNP");
+		writer.close();
+
+		new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-1").save("key", chunkFolder);
+		new ChunkCheckpoint(CHECKPOINTS, "user-1", "job-2").save("key", chunkFolder);
+
+		assertEquals(0, ChunkCheckpoint.cleanup(CHECKPOINTS, 1));
+
+		ChunkCheckpoint.delete(CHECKPOINTS, "user-1", "job-1");
+		assertFalse(HdfsUtil.exists(ChunkCheckpoint.getFolder(CHECKPOINTS, "user-1", "job-1")));
+		assertTrue(HdfsUtil.exists(ChunkCheckpoint.getFolder(CHECKPOINTS, "user-1", "job-2")));
+
+		Thread.sleep(10);
+		assertEquals(1, ChunkCheckpoint.cleanup(CHECKPOINTS, 0));
+		assertFalse(HdfsUtil.exists(ChunkCheckpoint.getFolder(CHECKPOINTS, "user-1", "job-2")));
+
+	}
+
+	private VcfChunk createChunk() {
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome("20");
+		chunk.setStart(1);
+		chunk.setEnd(20000000);
+		chunk.setChecksum(1234);
+		chunk.setVcfSize(5678);
+		return chunk;
+	}
+
+}
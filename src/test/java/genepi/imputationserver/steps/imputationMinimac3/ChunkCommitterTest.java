@@ -0,0 +1,80 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+import junit.framework.TestCase;
+
+public class ChunkCommitterTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/committer";
+
+	public static final String CHUNK = "chunk_20_0000000001_0020000000";
+
+	private Configuration configuration;
+
+	@Override
+	protected void setUp() throws Exception {
+		// local file system
+		configuration = HdfsUtil.getConfiguration();
+		HdfsUtil.setDefaultConfiguration(new Configuration());
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		HdfsUtil.setDefaultConfiguration(configuration);
+	}
+
+	public void testFirstAttemptWins() throws IOException {
+
+		String chunkFolder = ChunkCommitter.getChunkFolder(FOLDER, CHUNK);
+
+		String attempt1 = ChunkCommitter.getAttemptFolder(FOLDER, CHUNK, "attempt_1");
+		writeOutputs(attempt1, "attempt_1");
+		String attempt2 = ChunkCommitter.getAttemptFolder(FOLDER, CHUNK, "attempt_2");
+		writeOutputs(attempt2, "attempt_2");
+
+		// attempt folders are not listed
+		assertFalse(ChunkCommitter.isCommitted(FOLDER, CHUNK));
+		assertTrue(ChunkCommitter.findFiles(FOLDER, ".info").isEmpty());
+		assertTrue(ChunkCommitter.commit(attempt2, chunkFolder));
+		assertTrue(ChunkCommitter.isCommitted(FOLDER, CHUNK));
+
+		// the slower attempt is dropped, not moved into the chunk folder
+		assertFalse(ChunkCommitter.commit(attempt1, chunkFolder));
+		assertFalse(HdfsUtil.exists(attempt1));
+		assertFalse(HdfsUtil.exists(FileUtil.path(chunkFolder, CHUNK)));
+
+		// all files come from the same attempt
+		List<String> info = ChunkCommitter.findFiles(FOLDER, ".info");
+		List<String> data = ChunkCommitter.findFiles(FOLDER, ".data.dose.vcf.gz");
+		assertEquals(1, info.size());
+		assertEquals(1, data.size());
+		assertEquals("attempt_2", FileUtil.readFileAsString(info.get(0).replace("file:", "")).trim());
+		assertEquals("attempt_2", FileUtil.readFileAsString(data.get(0).replace("file:", "")).trim());
+
+		// attempt folders are deleted after the job
+		ChunkCommitter.cleanup(FOLDER);
+		assertFalse(HdfsUtil.exists(FileUtil.path(FOLDER, ChunkCommitter.ATTEMPTS_FOLDER)));
+		assertTrue(ChunkCommitter.isCommitted(FOLDER, CHUNK));
+
+	}
+
+	private void writeOutputs(String folder, String content) throws IOException {
+		FileUtil.createDirectory(folder);
+		for (String extension : new String[] { ".info", ".data.dose.vcf.gz", ".header.dose.vcf.gz" }) {
+			LineWriter writer = new LineWriter(FileUtil.path(folder, CHUNK + extension));
+			writer.write(content);
+			writer.close();
+		}
+	}
+
+}
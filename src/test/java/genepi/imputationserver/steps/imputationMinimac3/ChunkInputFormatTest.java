@@ -0,0 +1,139 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import junit.framework.TestCase;
+
+public class ChunkInputFormatTest extends TestCase {
+
+	public void testPackSmallJob() {
+
+		// few chunks on a large cluster are packed by the min task cost
+		List<VcfChunk> chunks = createChunks(20, 100);
+
+		List<ChunkSplit> splits = ChunkInputFormat.pack(chunks, 0, 500, 1000);
+		assertEquals(4, splits.size());
+		for (ChunkSplit split : splits) {
+			assertEquals(500, split.getCost());
+			assertEquals(5, split.getChunks().size());
+		}
+		assertEquals(20, countChunks(splits));
+
+		// total cost below the min cost
+		splits = ChunkInputFormat.pack(createChunks(3, 100), 0, 500, 1000);
+		assertEquals(1, splits.size());
+		assertEquals(3, splits.get(0).getChunks().size());
+
+	}
+
+	public void testPackMaxTasks() {
+
+		List<VcfChunk> chunks = createChunks(20, 100);
+
+		List<ChunkSplit> splits = ChunkInputFormat.pack(chunks, 0, 1, 4);
+		assertEquals(4, splits.size());
+		for (ChunkSplit split : splits) {
+			assertEquals(500, split.getCost());
+		}
+
+		// without min cost every chunk is a split
+		splits = ChunkInputFormat.pack(chunks, 0, 0, 100);
+		assertEquals(20, splits.size());
+
+		// slots are shared by the concurrent jobs
+		assertEquals(25, ChunkInputFormat.getMaxTasks(100, 4));
+		assertEquals(1, ChunkInputFormat.getMaxTasks(10, 22));
+		assertEquals(1, ChunkInputFormat.getMaxTasks(1, 0));
+
+	}
+
+	public void testPackLargeChunk() {
+
+		// one large chunk runs alone, the small chunks share the other tasks
+		List<VcfChunk> chunks = new Vector<VcfChunk>();
+		chunks.add(createChunk(1, 1000));
+		for (int i = 2; i <= 9; i++) {
+			chunks.add(createChunk(i, 100));
+		}
+
+		List<ChunkSplit> splits = ChunkInputFormat.pack(chunks, 0, 1, 5);
+		assertEquals(5, splits.size());
+		assertEquals(1, splits.get(0).getChunks().size());
+		assertEquals(1000, splits.get(0).getCost());
+		for (int i = 1; i < splits.size(); i++) {
+			assertEquals(200, splits.get(i).getCost());
+		}
+		assertEquals(9, countChunks(splits));
+
+	}
+
+	public void testChunksPerTask() {
+
+		List<VcfChunk> chunks = createChunks(20, 100);
+
+		// limit of chunks per task is kept
+		List<ChunkSplit> splits = ChunkInputFormat.pack(chunks, 2, 500, 1000);
+		assertEquals(10, splits.size());
+		for (ChunkSplit split : splits) {
+			assertEquals(2, split.getChunks().size());
+		}
+
+		// one chunk per split, also above the max number of tasks
+		splits = ChunkInputFormat.pack(chunks, 1, 500, 4);
+		assertEquals(20, splits.size());
+
+	}
+
+	public void testPackConfiguration() {
+
+		List<VcfChunk> chunks = createChunks(20, 100);
+
+		// number of map tasks is known before the job is submitted
+		Configuration configuration = new Configuration();
+		configuration.setLong(ChunkInputFormat.MIN_TASK_COST, 500);
+		configuration.setInt(ChunkInputFormat.MAX_TASKS, 1000);
+		assertEquals(4, ChunkInputFormat.pack(chunks, configuration).size());
+
+		configuration.setInt(ChunkInputFormat.MAX_TASKS, 2);
+		assertEquals(2, ChunkInputFormat.pack(chunks, configuration).size());
+
+		configuration.setBoolean(ChunkInputFormat.PACK_CHUNKS, false);
+		assertEquals(20, ChunkInputFormat.pack(chunks, configuration).size());
+
+	}
+
+	public void testPackEmpty() {
+		assertEquals(0, ChunkInputFormat.pack(new Vector<VcfChunk>(), 0, 500, 4).size());
+	}
+
+	private List<VcfChunk> createChunks(int count, int snps) {
+		List<VcfChunk> chunks = new Vector<VcfChunk>();
+		for (int i = 1; i <= count; i++) {
+			chunks.add(createChunk(i, snps));
+		}
+		return chunks;
+	}
+
+	private VcfChunk createChunk(int index, int snps) {
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome("20");
+		chunk.setStart(index * 1000000 + 1);
+		chunk.setEnd((index + 1) * 1000000);
+		chunk.setSnps(snps);
+		chunk.setSamples(1);
+		return chunk;
+	}
+
+	private int countChunks(List<ChunkSplit> splits) {
+		int count = 0;
+		for (ChunkSplit split : splits) {
+			count += split.getChunks().size();
+		}
+		return count;
+	}
+
+}
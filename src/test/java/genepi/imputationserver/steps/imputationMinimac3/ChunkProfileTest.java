@@ -0,0 +1,68 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.imputationserver.steps.imputationMinimac3.ChunkProfile.Phase;
+import junit.framework.TestCase;
+
+public class ChunkProfileTest extends TestCase {
+
+	public void testSerialize() {
+
+		ChunkProfile profile = new ChunkProfile();
+		profile.setChunk("chunk_20_1_20000000");
+		profile.addTime(Phase.DOWNLOAD, 100);
+		profile.addTime(Phase.PHASING, 2000);
+		profile.addTime(Phase.IMPUTATION, 5000);
+		profile.addTime(Phase.IMPUTATION, 1000);
+		profile.addDownloadBytes(1024);
+		profile.addUploadBytes(2048);
+
+		ChunkProfile result = new ChunkProfile(profile.serialize());
+		assertEquals("chunk_20_1_20000000", result.getChunk());
+		assertEquals(100, result.getTime(Phase.DOWNLOAD));
+		assertEquals(0, result.getTime(Phase.PREPARE));
+		assertEquals(2000, result.getTime(Phase.PHASING));
+		assertEquals(6000, result.getTime(Phase.IMPUTATION));
+		assertEquals(0, result.getTime(Phase.SPLIT));
+		assertEquals(0, result.getTime(Phase.UPLOAD));
+		assertEquals(1024, result.getDownloadBytes());
+		assertEquals(2048, result.getUploadBytes());
+		assertEquals(8100, result.getTotalTime());
+		assertEquals(Phase.IMPUTATION, result.getDominatingPhase());
+
+	}
+
+	public void testAdd() {
+
+		ChunkProfile profile1 = new ChunkProfile();
+		profile1.setChunk("chunk_20_1_20000000");
+		profile1.addTime(Phase.PHASING, 3000);
+		profile1.addTime(Phase.IMPUTATION, 1000);
+		profile1.addDownloadBytes(10);
+
+		ChunkProfile profile2 = new ChunkProfile();
+		profile2.addTime(Phase.IMPUTATION, 4000);
+		profile2.addUploadBytes(20);
+
+		// summary starts with the first chunk
+		ChunkProfile total = new ChunkProfile(profile1.serialize());
+		total.add(profile2);
+		assertEquals(3000, total.getTime(Phase.PHASING));
+		assertEquals(5000, total.getTime(Phase.IMPUTATION));
+		assertEquals(8000, total.getTotalTime());
+		assertEquals(10, total.getDownloadBytes());
+		assertEquals(20, total.getUploadBytes());
+		assertEquals(2, total.getChunks());
+		assertEquals(Phase.IMPUTATION, total.getDominatingPhase());
+
+	}
+
+	public void testEmpty() {
+
+		ChunkProfile profile = new ChunkProfile();
+		assertEquals(0, profile.getTotalTime());
+		assertEquals(Phase.DOWNLOAD, profile.getDominatingPhase());
+		assertEquals(1, profile.getChunks());
+
+	}
+
+}
@@ -0,0 +1,162 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+import junit.framework.TestCase;
+
+public class PanelCacheTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/panel-cache";
+
+	public static final String CACHE = FOLDER + "/cache";
+
+	public static final String PANELS = FOLDER + "/panels";
+
+	private Configuration configuration;
+
+	@Override
+	protected void setUp() throws Exception {
+		// local file system
+		configuration = HdfsUtil.getConfiguration();
+		HdfsUtil.setDefaultConfiguration(new Configuration());
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(PANELS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		HdfsUtil.setDefaultConfiguration(configuration);
+	}
+
+	public void testGet() throws IOException {
+
+		String panel = createPanel("panel1.m3vcf.gz", 1000);
+
+		PanelCache cache = new PanelCache(CACHE, PanelCache.DEFAULT_QUOTA);
+		String filename = cache.get(panel);
+		assertTrue(filename.startsWith(CACHE));
+		assertEquals("panel1.m3vcf.gz", FileUtil.getFilename(filename));
+		assertEquals(FileUtil.readFileAsString(panel), FileUtil.readFileAsString(filename));
+
+		// same entry for the same task
+		assertEquals(filename, cache.get(panel));
+		cache.close();
+
+		// other tasks use the downloaded entry
+		File ready = new File(new File(filename).getParentFile(), ".ready");
+		long downloaded = new File(filename).lastModified();
+		PanelCache cache2 = new PanelCache(CACHE, PanelCache.DEFAULT_QUOTA);
+		assertEquals(filename, cache2.get(panel));
+		assertEquals(downloaded, new File(filename).lastModified());
+		assertTrue(ready.exists());
+		cache2.close();
+
+	}
+
+	public void testUpdatedPanel() throws IOException {
+
+		String panel = createPanel("panel1.m3vcf.gz", 1000);
+
+		PanelCache cache = new PanelCache(CACHE, PanelCache.DEFAULT_QUOTA);
+		String filename = cache.get(panel);
+		cache.close();
+
+		// new modification time, panel is downloaded again
+		createPanel("panel1.m3vcf.gz", 2000);
+		new File(panel).setLastModified(new File(panel).lastModified() + 10000);
+
+		PanelCache cache2 = new PanelCache(CACHE, PanelCache.DEFAULT_QUOTA);
+		String updated = cache2.get(panel);
+		assertFalse(filename.equals(updated));
+		assertEquals(FileUtil.readFileAsString(panel), FileUtil.readFileAsString(updated));
+		cache2.close();
+
+	}
+
+	public void testEviction() throws IOException {
+
+		String panel1 = createPanel("panel1.m3vcf.gz", 1000);
+		String panel2 = createPanel("panel2.m3vcf.gz", 1000);
+		String panel3 = createPanel("panel3.m3vcf.gz", 1000);
+
+		// quota for two panels
+		PanelCache cache = new PanelCache(CACHE, 2500);
+		String filename1 = cache.get(panel1);
+		String filename2 = cache.get(panel2);
+		cache.close();
+
+		// panel1 is used more recently than panel2
+		setLastUsed(filename2, 1000);
+		setLastUsed(filename1, 2000);
+
+		PanelCache cache2 = new PanelCache(CACHE, 2500);
+		String filename3 = cache2.get(panel3);
+		cache2.close();
+
+		// least recently used entry is evicted until the quota is reached
+		assertTrue(new File(filename1).exists());
+		assertFalse(new File(filename2).exists());
+		assertTrue(new File(filename3).exists());
+
+	}
+
+	public void testEntriesInUse() throws IOException {
+
+		String panel1 = createPanel("panel1.m3vcf.gz", 1000);
+		String panel2 = createPanel("panel2.m3vcf.gz", 1000);
+
+		// quota for one panel only
+		PanelCache cache = new PanelCache(CACHE, 1500);
+		String filename1 = cache.get(panel1);
+
+		// entry is locked by the first task and not evicted
+		PanelCache cache2 = new PanelCache(CACHE, 1500);
+		String filename2 = cache2.get(panel2);
+		assertTrue(new File(filename1).exists());
+		assertTrue(new File(filename2).exists());
+		cache2.close();
+
+		// entries of the task itself are not evicted
+		String filename1Again = cache.get(panel1);
+		assertEquals(filename1, filename1Again);
+		assertTrue(new File(filename1).exists());
+		cache.close();
+
+		// released entries are evicted
+		setLastUsed(filename1, 1000);
+		setLastUsed(filename2, 2000);
+		PanelCache cache3 = new PanelCache(CACHE, 1500);
+		String filename3 = cache3.get(createPanel("panel3.m3vcf.gz", 1000));
+		cache3.close();
+		assertFalse(new File(filename1).exists());
+		assertFalse(new File(filename2).exists());
+		assertTrue(new File(filename3).exists());
+
+	}
+
+	protected String createPanel(String name, int size) throws IOException {
+		String filename = new File(FileUtil.path(PANELS, name)).getAbsolutePath();
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < size - 1; i++) {
+			content.append((char) ('a' + (i % 26)));
+		}
+		LineWriter writer = new LineWriter(filename);
+		writer.write(content.toString());
+		writer.close();
+		return filename;
+	}
+
+	// last use of an entry in seconds since epoch
+	protected void setLastUsed(String filename, long seconds) {
+		File ready = new File(new File(filename).getParentFile(), ".ready");
+		assertTrue(ready.setLastModified(seconds * 1000));
+	}
+
+}
@@ -0,0 +1,93 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import java.util.List;
+import java.util.Vector;
+
+import genepi.imputationserver.steps.imputationMinimac3.StragglerDetector.Task;
+import junit.framework.TestCase;
+
+public class StragglerDetectorTest extends TestCase {
+
+	public void testGetCost() {
+		assertEquals(1200, StragglerDetector.getCost("cost=1200; chunk_20_1_20000000: imputation"));
+		assertEquals(0, StragglerDetector.getCost("setup"));
+		assertEquals(0, StragglerDetector.getCost(null));
+	}
+
+	public void testCheck() {
+
+		// 1 ms per cost unit
+		List<Task> tasks = new Vector<Task>();
+		tasks.add(createTask("task_1", 1000, false, 0, 1000));
+		tasks.add(createTask("task_2", 2000, false, 0, 2000));
+		tasks.add(createTask("task_3", 1000, false, 0, 1100));
+
+		tasks.add(createTask("task_4", 1000, true, 10000, 0));
+		tasks.add(createTask("task_5", 1000, true, 12000, 0));
+
+		StragglerDetector detector = new StragglerDetector();
+		detector.setReportFactor(3);
+
+		// not enough finished tasks
+		assertTrue(detector.check(tasks.subList(2, 5), 20000).isEmpty());
+
+		List<String> messages = detector.check(tasks, 14500);
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(0).startsWith("Task task_4 runs"));
+
+		// stragglers are reported once
+		messages = detector.check(tasks, 16000);
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(0).startsWith("Task task_5"));
+		assertTrue(detector.check(tasks, 20000).isEmpty());
+
+		// reporting does not relaunch
+		for (Task task : tasks) {
+			assertFalse(task.relaunch);
+		}
+
+	}
+
+	public void testRelaunch() {
+
+		List<Task> tasks = new Vector<Task>();
+		tasks.add(createTask("task_1", 1000, false, 0, 1000));
+		tasks.add(createTask("task_2", 1000, false, 0, 1000));
+		tasks.add(createTask("task_3", 1000, false, 0, 1000));
+		tasks.add(createTask("task_4", 1000, true, 10000, 0));
+
+		StragglerDetector detector = new StragglerDetector();
+		detector.setReportFactor(3);
+		detector.setRelaunchFactor(5);
+
+		// reported, but not slow enough for a relaunch
+		assertEquals(1, detector.check(tasks, 14500).size());
+		assertFalse(tasks.get(3).relaunch);
+
+		detector.check(tasks, 15500);
+		assertTrue(tasks.get(3).relaunch);
+
+		// the start time of the task is kept, it is relaunched only once
+		tasks.get(3).relaunch = false;
+		detector.check(tasks, 30000);
+		assertFalse(tasks.get(3).relaunch);
+
+		// finished tasks are not relaunched
+		for (int i = 0; i < 3; i++) {
+			assertFalse(tasks.get(i).relaunch);
+		}
+
+	}
+
+	private Task createTask(String id, long cost, boolean running, long startTime, long finishTime) {
+		Task task = new Task();
+		task.id = id;
+		task.status = StragglerDetector.STATUS_COST + cost + "; chunk";
+		task.running = running;
+		task.complete = !running;
+		task.startTime = startTime;
+		task.finishTime = finishTime;
+		return task;
+	}
+
+}
@@ -0,0 +1,76 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import junit.framework.TestCase;
+
+public class BgenConverterTest extends TestCase {
+
+	public void testQuantize() {
+
+		long[] values = BgenConverter.quantize(new double[] { 0.9, 0.1, 0 }, 255);
+		assertEquals(230, values[0]);
+		assertEquals(25, values[1]);
+		assertEquals(0, values[2]);
+
+		// sum is always max
+		values = BgenConverter.quantize(new double[] { 0.333, 0.333, 0.334 }, 255);
+		assertEquals(255, values[0] + values[1] + values[2]);
+
+	}
+
+	public void testConvert() throws IOException {
+
+		ByteArrayOutputStream part = new ByteArrayOutputStream();
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(part, null);
+		for (int i = 1; i <= 100; i++) {
+			out.write(("20\t" + i + "\t20:" + i + ":A:G\tA\tG\t.\tPASS\tR2=0.9\tGT:DS:GP\t0|0:0.1:0.9,0.1,0"
+					+ "\t0|1:1.0:0.25,0.5,0.25\t1:0.3:0.7,0.3\n").getBytes());
+		}
+		out.close();
+
+		BgenConverter converter = new BgenConverter(3);
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		ByteArrayOutputStream partIndex = new ByteArrayOutputStream();
+		converter.convert(new ByteArrayInputStream(part.toByteArray()), blocks, partIndex);
+		assertEquals(100, converter.getVariants());
+
+		List<String> samples = Arrays.asList("S1", "S2", "S3");
+		ByteArrayOutputStream bgen = new ByteArrayOutputStream();
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		BgenFile bgenFile = new BgenFile(bgen, index);
+		bgenFile.writeHeader(samples, converter.getVariants());
+		int headerSize = bgen.size();
+		bgenFile.addPart(new ByteArrayInputStream(blocks.toByteArray()),
+				new ByteArrayInputStream(partIndex.toByteArray()));
+		bgenFile.finish();
+
+		byte[] data = bgen.toByteArray();
+		assertEquals(headerSize - 4, readInt(data, 0));
+		assertEquals(100, readInt(data, 8));
+		assertEquals(3, readInt(data, 12));
+		assertEquals("bgen", new String(data, 16, 4));
+		assertEquals(headerSize + blocks.size(), data.length);
+
+		// index points to the variant blocks
+		String[] lines = index.toString().split("\n");
+		assertEquals(101, lines.length);
+		String[] first = lines[1].split("\t");
+		assertEquals("20:1:A:G", first[2]);
+		assertEquals(headerSize, Integer.parseInt(first[6]));
+		String[] last = lines[100].split("\t");
+		assertEquals(data.length, Integer.parseInt(last[6]) + Integer.parseInt(last[7]));
+
+	}
+
+	private int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+				| (data[offset + 3] & 0xff) << 24;
+	}
+
+}
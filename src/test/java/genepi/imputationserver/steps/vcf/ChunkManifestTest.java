@@ -0,0 +1,74 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ChunkManifestTest extends TestCase {
+
+	public void testWriteAndRead() throws IOException {
+
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome("20");
+		chunk.setStart(20000001);
+		chunk.setEnd(40000000);
+		chunk.setPhased(false);
+		chunk.setVcfFilename("chunks/chunk_20_20000001_40000000.vcf.gz");
+		chunk.setIndexFilename("chunks/chunk_20_20000001_40000000.vcf.gz.tbi");
+		chunk.setSnps(7824);
+		chunk.setInReference(7735);
+		chunk.setReferenceSites(98765);
+		chunk.setSamples(51);
+		chunk.setVcfSize(1234567);
+		chunk.setChecksum(4023456789L);
+
+		ChunkManifest manifest = new ChunkManifest();
+		manifest.add(chunk);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+
+		ChunkManifest result = ChunkManifest.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(1, result.size());
+		assertFalse(result.isPhased());
+
+		VcfChunk resultChunk = result.getChunks().get(0);
+		assertEquals("chunk_20_0020000001_0040000000", resultChunk.getId());
+		assertEquals(chunk.serialize(), resultChunk.serialize());
+		assertEquals(51, resultChunk.getSamples());
+		assertEquals(98765, resultChunk.getReferenceSites());
+		assertEquals(98765L * 51, resultChunk.getCost());
+		assertEquals(1234567, resultChunk.getVcfSize());
+		assertEquals(4023456789L, resultChunk.getChecksum());
+
+	}
+
+	public void testCostWithoutReferenceSites() {
+		VcfChunk chunk = new VcfChunk();
+		chunk.setSnps(7824);
+		chunk.setSamples(51);
+		assertEquals(7824L * 51, chunk.getCost());
+	}
+
+	public void testUnsupportedVersion() throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(ChunkManifest.MAGIC);
+		data.writeInt(ChunkManifest.VERSION + 1);
+		data.writeInt(0);
+		data.close();
+
+		try {
+			ChunkManifest.read(new ByteArrayInputStream(out.toByteArray()));
+			fail("unsupported version not detected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("not supported"));
+		}
+
+	}
+
+}
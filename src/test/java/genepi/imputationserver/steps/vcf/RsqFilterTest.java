@@ -0,0 +1,76 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import junit.framework.TestCase;
+
+public class RsqFilterTest extends TestCase {
+
+	public void testAccept() {
+
+		RsqFilter filter = new RsqFilter(0.3f);
+
+		assertTrue(accept(filter, "20\t100\t20:100:A:G\tA\tG\t.\tPASS\tAF=0.1;MAF=0.1;R2=0.3;IMPUTED\tGT:DS\t0|0:0\n"));
+		assertFalse(accept(filter, "20\t100\t20:100:A:G\tA\tG\t.\tPASS\tAF=0.1;MAF=0.1;R2=0.29;IMPUTED\tGT:DS\t0|0:0\n"));
+		assertTrue(accept(filter, "20\t100\t20:100:A:G\tA\tG\t.\tPASS\tR2=0.9\tGT:DS\t0|0:0\n"));
+		// no R2, e.g. typed only
+		assertTrue(accept(filter, "20\t100\t20:100:A:G\tA\tG\t.\tPASS\tAF=0.1;TYPED_ONLY\tGT:DS\t0|0:0\n"));
+		// only the INFO column is used
+		assertFalse(accept(filter, "20\t100\tR2=0.9\tA\tG\t.\tPASS\tAF=0.1;R2=0.1\tGT:DS\t0|0:0\n"));
+
+	}
+
+	public void testFilteredMerge() throws IOException {
+
+		ByteArrayOutputStream part = new ByteArrayOutputStream();
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(part, null);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 1; i <= 20000; i++) {
+			String rsq = i % 2 == 0 ? "0.8" : "0.1";
+			String line = "20\t" + i + "\t20:" + i + ":A:G\tA\tG\t.\tPASS\tAF=0.1;MAF=0.1;R2=" + rsq
+					+ ";IMPUTED\tGT:DS\t0|1:1.000\n";
+			out.write(line.getBytes());
+			if (i % 2 == 0) {
+				expected.append(line);
+			}
+		}
+		out.close();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		RsqFilter filter = new RsqFilter(0.3f);
+
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		MergedVcfFile vcfFile = new MergedVcfFile(merged);
+		vcfFile.setIndexed(true);
+		vcfFile.addFile(new ByteArrayInputStream(part.toByteArray()), filter, executor, 4);
+		vcfFile.close();
+		executor.shutdown();
+
+		assertEquals(10000, filter.getKept());
+		assertEquals(10000, filter.getRemoved());
+		assertTrue(vcfFile.isIndexed());
+		assertNotNull(vcfFile.getIndex());
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(merged.toByteArray()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			result.write(buffer, 0, read);
+		}
+		in.close();
+		assertEquals(expected.toString(), result.toString());
+
+	}
+
+	private boolean accept(RsqFilter filter, String line) {
+		return filter.accept(line.getBytes(), line.length());
+	}
+
+}
@@ -0,0 +1,79 @@
+package genepi.imputationserver.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import genepi.imputationserver.util.AdmissionController.Lease;
+import genepi.io.FileUtil;
+import junit.framework.TestCase;
+
+public class AdmissionControllerTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/admission";
+
+	@Override
+	protected void setUp() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+	}
+
+	public void testLimits() throws IOException {
+
+		AdmissionController controller = new AdmissionController(FOLDER);
+		controller.setMaxJobs(3);
+		controller.setMaxJobsPerUser(2);
+
+		Lease lease1 = controller.tryAcquire("user1", "hapmap2", 10);
+		Lease lease2 = controller.tryAcquire("user1", "hapmap2", 10);
+		assertNotNull(lease1);
+		assertNotNull(lease2);
+
+		// user limit reached
+		assertNull(controller.tryAcquire("user1", "hapmap2", 10));
+
+		// global limit reached
+		Lease lease3 = controller.tryAcquire("user2", "hapmap2", 10);
+		assertNotNull(lease3);
+		assertNull(controller.tryAcquire("user3", "hapmap2", 10));
+
+		lease1.release();
+		Lease lease4 = controller.tryAcquire("user3", "hapmap2", 10);
+		assertNotNull(lease4);
+
+		lease2.release();
+		lease3.release();
+		lease4.release();
+
+	}
+
+	public void testSlotsAndStaleLeases() throws IOException {
+
+		AdmissionController controller = new AdmissionController(FOLDER);
+		controller.setMaxSlots(20);
+
+		// lease of a crashed process: file is not locked
+		RandomAccessFile stale = new RandomAccessFile(new File(FOLDER, "00000000000000000001-stale.lease"), "rw");
+		stale.writeUTF("user1");
+		stale.writeUTF("hapmap2");
+		stale.writeInt(20);
+		stale.close();
+
+		Lease lease1 = controller.tryAcquire("user2", "hapmap2", 15);
+		assertNotNull(lease1);
+		assertFalse(new File(FOLDER, "00000000000000000001-stale.lease").exists());
+
+		assertNull(controller.tryAcquire("user3", "hapmap2", 10));
+		Lease lease2 = controller.tryAcquire("user3", "hapmap2", 5);
+		assertNotNull(lease2);
+
+		lease1.release();
+		lease2.release();
+
+	}
+
+}
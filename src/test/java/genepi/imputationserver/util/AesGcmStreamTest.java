@@ -0,0 +1,94 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class AesGcmStreamTest extends TestCase {
+
+	public void testRoundTrip() throws IOException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		// empty, smaller than one segment, exact and partial segments
+		for (int size : new int[] { 0, 100, 1024, 10 * 1024 + 17 }) {
+
+			byte[] data = new byte[size];
+			new Random(size).nextBytes(data);
+
+			byte[] encrypted = encrypt(data, "password", executor);
+			assertEquals(data, decrypt(encrypted, "password"));
+
+		}
+
+		executor.shutdown();
+
+	}
+
+	public void testWrongPassword() throws IOException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		byte[] encrypted = encrypt(new byte[5000], "password", executor);
+		executor.shutdown();
+
+		try {
+			decrypt(encrypted, "wrong");
+			fail("wrong password not detected.");
+		} catch (IOException e) {
+			assertEquals("Wrong password or corrupt file.", e.getMessage());
+		}
+
+	}
+
+	public void testTruncatedFile() throws IOException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		byte[] encrypted = encrypt(new byte[5000], "password", executor);
+		executor.shutdown();
+
+		// remove last segment
+		int lastSegment = 5000 % 1024 + AesGcmOutputStream.TAG_LENGTH;
+		byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - lastSegment);
+
+		try {
+			decrypt(truncated, "password");
+			fail("truncated file not detected.");
+		} catch (IOException e) {
+			assertEquals("Wrong password or corrupt file.", e.getMessage());
+		}
+
+	}
+
+	private byte[] encrypt(byte[] data, String password, ExecutorService executor) throws IOException {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		OutputStream out = new AesGcmOutputStream(encrypted, password, executor, 2, 1024);
+		out.write(data);
+		out.close();
+		return encrypted.toByteArray();
+	}
+
+	private byte[] decrypt(byte[] data, String password) throws IOException {
+		InputStream in = new AesGcmInputStream(new ByteArrayInputStream(data), password);
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		byte[] buffer = new byte[333];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			decrypted.write(buffer, 0, read);
+		}
+		in.close();
+		return decrypted.toByteArray();
+	}
+
+	private void assertEquals(byte[] expected, byte[] actual) {
+		assertTrue(Arrays.equals(expected, actual));
+	}
+
+}
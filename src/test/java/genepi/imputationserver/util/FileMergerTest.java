@@ -0,0 +1,232 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import genepi.imputationserver.steps.vcf.MergedVcfFile;
+import genepi.io.FileUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.readers.TabixReader;
+import junit.framework.TestCase;
+
+public class FileMergerTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/filemerger";
+
+	@Override
+	protected void setUp() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+	}
+
+	public void testSplitIntoHeaderAndData() throws IOException {
+
+		String filename = FileUtil.path(FOLDER, "chunk.dose.vcf.gz");
+
+		StringBuilder header = new StringBuilder();
+		header.append("##fileformat=VCFv4.1\n");
+		header.append("##minimac4_Command=--refHaps ref.m3vcf.gz\n");
+		header.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tSAMPLE1\n");
+
+		// data spans several blocks
+		StringBuilder data = new StringBuilder();
+		for (int i = 1; i <= 20000; i++) {
+			data.append("20\t" + i + "\t20:" + i + "\tA\tC\t.\tPASS\tR2=0.5\tGT:DS\t0|1:1.000\n");
+		}
+
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(new File(filename));
+		out.write(header.toString().getBytes());
+		out.write(data.toString().getBytes());
+		out.close();
+
+		ByteArrayOutputStream outHeader = new ByteArrayOutputStream();
+		ByteArrayOutputStream outData = new ByteArrayOutputStream();
+		FileMerger.splitIntoHeaderAndData(filename, outHeader, outData);
+
+		String expectedHeader = header.toString().replace("##minimac4_Command=--refHaps ref.m3vcf.gz\n", "");
+		assertEquals(expectedHeader, decompress(outHeader.toByteArray()));
+		assertEquals(data.toString(), decompress(outData.toByteArray()));
+
+		// header and data parts can be concatenated
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		outHeader.writeTo(merged);
+		outData.writeTo(merged);
+		assertEquals(expectedHeader + data.toString(), decompress(merged.toByteArray()));
+
+	}
+
+	public void testPartIndex() throws IOException {
+
+		String filename = FileUtil.path(FOLDER, "chunk.dose.vcf.gz");
+
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(new File(filename));
+		out.write("##fileformat=VCFv4.1\n".getBytes());
+		for (int i = 1; i <= 20000; i++) {
+			out.write(("20\t" + (i * 10) + "\t.\tAT\tC\t.\tPASS\tR2=0.5\tGT:DS\t0|1:1.000\n").getBytes());
+		}
+		out.close();
+
+		ByteArrayOutputStream outHeader = new ByteArrayOutputStream();
+		ByteArrayOutputStream outData = new ByteArrayOutputStream();
+		ByteArrayOutputStream outIndex = new ByteArrayOutputStream();
+		assertTrue(FileMerger.splitIntoHeaderAndData(filename, outHeader, outData, outIndex));
+
+		BgzfPartIndex index = BgzfPartIndex.read(new ByteArrayInputStream(outIndex.toByteArray()));
+		assertTrue(index.getEntries().size() > 1);
+
+		// data part is appended after the header
+		long partOffset = outHeader.size();
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		outHeader.writeTo(merged);
+		outData.writeTo(merged);
+		merged.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(merged.toByteArray()));
+		for (BgzfPartIndex.Entry entry : index.getEntries()) {
+			in.seek(entry.getVirtualOffset(partOffset));
+			String line = in.readLine();
+			assertEquals("20", entry.getChromosome());
+			assertTrue(line.startsWith("20\t" + entry.getStart() + "\t"));
+			assertTrue(entry.getEnd() >= entry.getStart() + 1);
+		}
+		in.close();
+
+	}
+
+	public void testMergedIndex() throws IOException {
+
+		String output = FileUtil.path(FOLDER, "chr20.dose.vcf.gz");
+		MergedVcfFile merged = new MergedVcfFile(output);
+		merged.setIndexed(true);
+
+		// three chunks with 10000 records each, positions 10, 20, ...
+		for (int c = 0; c < 3; c++) {
+
+			String filename = FileUtil.path(FOLDER, "chunk_" + c + ".dose.vcf.gz");
+			BlockCompressedOutputStream out = new BlockCompressedOutputStream(new File(filename));
+			out.write("##fileformat=VCFv4.1\n".getBytes());
+			out.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tSAMPLE1\n".getBytes());
+			for (int i = 1; i <= 10000; i++) {
+				int position = (c * 10000 + i) * 10;
+				out.write(("20\t" + position + "\t.\tA\tC\t.\tPASS\tR2=0.5\tGT:DS\t0|1:1.000\n").getBytes());
+			}
+			out.close();
+
+			ByteArrayOutputStream outHeader = new ByteArrayOutputStream();
+			ByteArrayOutputStream outData = new ByteArrayOutputStream();
+			ByteArrayOutputStream outIndex = new ByteArrayOutputStream();
+			assertTrue(FileMerger.splitIntoHeaderAndData(filename, outHeader, outData, outIndex));
+
+			if (c == 0) {
+				merged.addFile(new ByteArrayInputStream(outHeader.toByteArray()));
+			}
+			merged.addFile(new ByteArrayInputStream(outData.toByteArray()),
+					new ByteArrayInputStream(outIndex.toByteArray()));
+
+		}
+
+		merged.close();
+		assertTrue(merged.isIndexed());
+
+		FileOutputStream outIndex = new FileOutputStream(output + ".tbi");
+		outIndex.write(merged.getIndex());
+		outIndex.close();
+
+		TabixReader reader = new TabixReader(output, output + ".tbi");
+
+		// crosses the boundary of the first and second part
+		assertPositions(reader, "20:99951-100050", 99960, 100050);
+
+		// crosses the boundary of the second and third part
+		assertPositions(reader, "20:199901-200200", 199910, 200200);
+
+		// all parts
+		assertPositions(reader, "20:50000-250000", 50000, 250000);
+
+		// behind the last record
+		assertPositions(reader, "20:300001-400000", 0, -10);
+
+		reader.close();
+
+	}
+
+	// expects all positions from first to last with step 10
+	private void assertPositions(TabixReader reader, String region, int first, int last) throws IOException {
+		TabixReader.Iterator iterator = reader.query(region);
+		int expected = first;
+		String line;
+		while (iterator != null && (line = iterator.next()) != null) {
+			assertEquals(expected, Integer.parseInt(line.split("\t")[1]));
+			expected += 10;
+		}
+		assertEquals(last + 10, expected);
+	}
+
+	public void testMergeAndGzInfo() throws IOException {
+
+		String header = "SNP\tREF(0)\tALT(1)\tALT_Frq\tMAF\tAvgCall\tRsq\tGenotyped\n";
+
+		ArrayList<String> files = new ArrayList<String>();
+		StringBuilder expected = new StringBuilder(header);
+		for (int i = 0; i < 5; i++) {
+			StringBuilder content = new StringBuilder(header);
+			for (int j = 1; j <= 10000; j++) {
+				String line = "20:" + (i * 10000 + j) + "\tA\tC\t0.5\t0.5\t0.9\t0.8\tImputed";
+				content.append(line);
+				expected.append(line + "\n");
+				// last part without newline
+				if (i < 4 || j < 10000) {
+					content.append("\n");
+				}
+			}
+			String filename = FileUtil.path(FOLDER, "chunk_" + i + ".info");
+			FileOutputStream out = new FileOutputStream(filename);
+			out.write(content.toString().getBytes());
+			out.close();
+			files.add(filename);
+		}
+
+		String output = FileUtil.path(FOLDER, "chr20.info.gz");
+		FileMerger.mergeAndGzInfo(files, output);
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new File(output));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			result.write(buffer, 0, read);
+		}
+		in.close();
+
+		// only one header
+		assertEquals(expected.toString(), result.toString());
+
+	}
+
+	private String decompress(byte[] bgzf) throws IOException {
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(bgzf);
+		file.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(file.toByteArray()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			result.write(buffer, 0, read);
+		}
+		in.close();
+		return result.toString();
+	}
+
+}
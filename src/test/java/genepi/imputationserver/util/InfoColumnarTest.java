@@ -0,0 +1,87 @@
+package genepi.imputationserver.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import genepi.io.FileUtil;
+import junit.framework.TestCase;
+
+public class InfoColumnarTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/infocolumnar";
+
+	@Override
+	protected void setUp() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+	}
+
+	public void testWriteAndQuery() throws IOException {
+
+		String filename = FileUtil.path(FOLDER, "chr20" + InfoColumnarWriter.EXTENSION);
+
+		InfoColumnarWriter writer = new InfoColumnarWriter(new FileOutputStream(filename));
+		writer.setBlockSize(100);
+		writer.write("SNP\tREF(0)\tALT(1)\tALT_Frq\tMAF\tAvgCall\tRsq\tGenotyped\tLooRsq\n".getBytes());
+
+		// rsq of first 500 variants is low, only some variants are genotyped
+		int expected = 0;
+		for (int i = 1; i <= 1000; i++) {
+			String rsq = i <= 500 ? "0.10000" : "0.90000";
+			String type = i % 10 == 0 ? "Genotyped" : "Imputed";
+			if (i > 500) {
+				expected++;
+			}
+			writer.write(("20:" + (i * 100) + ":A:G\tA\tG\t0.2\t0.2\t0.95\t" + rsq + "\t" + type + "\t-\n").getBytes());
+		}
+		writer.close();
+		assertEquals(10, writer.getBlocks());
+
+		InfoColumnarReader reader = new InfoColumnarReader(filename);
+		assertEquals("20", reader.getChromosome());
+		assertEquals(10, reader.getBlocks().size());
+
+		// all variants
+		int count = 0;
+		while (reader.next()) {
+			count++;
+			assertEquals(count * 100, reader.get().getPosition());
+			assertEquals("20:" + (count * 100) + ":A:G", reader.get().getName());
+			assertEquals(count % 10 == 0, reader.get().isGenotyped());
+		}
+		reader.close();
+		assertEquals(1000, count);
+
+		// blocks with low rsq are skipped
+		reader = new InfoColumnarReader(filename);
+		reader.setMinRsq(0.3f);
+		count = 0;
+		while (reader.next()) {
+			assertTrue(reader.get().getRsq() >= 0.3f);
+			assertEquals("A", reader.get().getRef());
+			assertEquals("G", reader.get().getAlt());
+			count++;
+		}
+		reader.close();
+		assertEquals(expected, count);
+		assertEquals(5, reader.getReadBlocks());
+
+		// region
+		reader = new InfoColumnarReader(filename);
+		reader.setRegion(10001, 20000);
+		count = 0;
+		while (reader.next()) {
+			count++;
+		}
+		reader.close();
+		assertEquals(100, count);
+		assertEquals(1, reader.getReadBlocks());
+
+	}
+
+}
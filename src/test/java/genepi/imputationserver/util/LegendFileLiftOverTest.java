@@ -0,0 +1,70 @@
+package genepi.imputationserver.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import genepi.imputationserver.util.LegendFileLiftOver.LegendFileLiftOverResults;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import junit.framework.TestCase;
+
+public class LegendFileLiftOverTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/legend-liftover";
+
+	public static final String LEGEND = "test-data/configs/hapmap-chr20/ref-panels/hapmap_r22.chr20.CEU.hg19_impute.legend.gz";
+
+	public static final String CHAIN = "test-data/configs/hapmap-chr20-hg38/hg19ToHg38.over.chain.gz";
+
+	@Override
+	protected void setUp() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+	}
+
+	public void testExternalSort() throws IOException {
+
+		String inMemory = FileUtil.path(FOLDER, "in-memory.legend.gz");
+		LegendFileLiftOverResults results = LegendFileLiftOver.liftOver(LEGEND, inMemory, CHAIN, FOLDER, "20");
+
+		// sorted runs are written and merged
+		String external = FileUtil.path(FOLDER, "external.legend.gz");
+		LegendFileLiftOverResults resultsExternal = LegendFileLiftOver.liftOver(LEGEND, external, CHAIN, FOLDER,
+				"20", 1024 * 1024);
+
+		assertTrue(results.snpsWritten > 0);
+		assertEquals(results.snpsWritten, resultsExternal.snpsWritten);
+		assertEquals(results.errors.size(), resultsExternal.errors.size());
+
+		LineReader reader1 = new LineReader(inMemory);
+		LineReader reader2 = new LineReader(external);
+		int lines = 0;
+		int lastPosition = 0;
+		while (reader1.next()) {
+			assertTrue(reader2.next());
+			assertEquals(reader1.get(), reader2.get());
+			if (lines > 0) {
+				int position = Integer.parseInt(reader1.get().split(" ")[1]);
+				assertTrue(position >= lastPosition);
+				lastPosition = position;
+			}
+			lines++;
+		}
+		assertFalse(reader2.next());
+		reader1.close();
+		reader2.close();
+
+		// header and snps
+		assertEquals(results.snpsWritten + 1, lines);
+
+		// temporary runs are deleted
+		assertEquals(2, new File(FOLDER).list().length);
+
+	}
+
+}
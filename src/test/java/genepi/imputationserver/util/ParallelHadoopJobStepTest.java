@@ -0,0 +1,134 @@
+package genepi.imputationserver.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import genepi.hadoop.common.WorkflowContext;
+import junit.framework.TestCase;
+
+public class ParallelHadoopJobStepTest extends TestCase {
+
+	private long minPollInterval;
+
+	private long maxPollInterval;
+
+	@Override
+	protected void setUp() throws Exception {
+		minPollInterval = ParallelHadoopJobStep.MIN_POLL_INTERVAL;
+		maxPollInterval = ParallelHadoopJobStep.MAX_POLL_INTERVAL;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ParallelHadoopJobStep.MIN_POLL_INTERVAL = minPollInterval;
+		ParallelHadoopJobStep.MAX_POLL_INTERVAL = maxPollInterval;
+	}
+
+	public void testBlockingSubmission() throws Exception {
+
+		TestStep step = new TestStep(1);
+
+		// one thread and one queued task, the third submission has to wait
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(1), step.new BlockingSubmissionPolicy());
+
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger(0);
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finished.incrementAndGet();
+			}
+		});
+		running.await();
+
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				finished.incrementAndGet();
+			}
+		};
+		executor.execute(task);
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				executor.execute(task);
+				submitted.countDown();
+			}
+		};
+		submitter.start();
+
+		// queue is full, submitter blocks instead of being rejected
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(submitted.await(5, TimeUnit.SECONDS));
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(3, finished.get());
+
+		// no submissions after shutdown
+		try {
+			executor.execute(task);
+			fail("submission after shutdown accepted");
+		} catch (RejectedExecutionException e) {
+
+		}
+
+	}
+
+	public void testBackoff() throws Exception {
+
+		ParallelHadoopJobStep.MIN_POLL_INTERVAL = 100;
+		ParallelHadoopJobStep.MAX_POLL_INTERVAL = 400;
+
+		TestStep step = new TestStep(1);
+		assertEquals(100, step.getPollInterval());
+
+		// nothing changes, interval is doubled up to the max
+		step.updateProgress();
+		assertEquals(200, step.getPollInterval());
+
+		// polls before the next poll time are skipped
+		step.updateProgress();
+		assertEquals(200, step.getPollInterval());
+
+		Thread.sleep(450);
+		step.updateProgress();
+		assertEquals(400, step.getPollInterval());
+
+		Thread.sleep(450);
+		step.updateProgress();
+		assertEquals(400, step.getPollInterval());
+
+	}
+
+	class TestStep extends ParallelHadoopJobStep {
+
+		public TestStep(int threads) {
+			super(threads);
+		}
+
+		@Override
+		public boolean run(WorkflowContext context) {
+			return true;
+		}
+
+	}
+
+}
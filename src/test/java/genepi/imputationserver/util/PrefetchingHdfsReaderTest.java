@@ -0,0 +1,197 @@
+package genepi.imputationserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+import junit.framework.TestCase;
+
+public class PrefetchingHdfsReaderTest extends TestCase {
+
+	public static final String FOLDER = "test-data/tmp/prefetching";
+
+	private Configuration configuration;
+
+	@Override
+	protected void setUp() throws Exception {
+		// local file system
+		configuration = HdfsUtil.getConfiguration();
+		HdfsUtil.setDefaultConfiguration(new Configuration());
+		FileUtil.deleteDirectory(FOLDER);
+		FileUtil.createDirectory(FOLDER);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(FOLDER);
+		HdfsUtil.setDefaultConfiguration(configuration);
+	}
+
+	public void testOrder() throws IOException {
+
+		// small files are buffered completely, large files only partly
+		List<String> files = new Vector<String>();
+		for (int i = 0; i < 10; i++) {
+			files.add(createFile("file" + i + ".txt", i * 10));
+		}
+
+		PrefetchingHdfsReader reader = new PrefetchingHdfsReader(files);
+		reader.setPrefetch(3);
+		reader.setBufferSize(32);
+
+		int count = 0;
+		while (reader.next()) {
+			assertEquals(files.get(count), reader.getFilename());
+			assertEquals(readFile(files.get(count)), read(reader.get()));
+			count++;
+		}
+		assertEquals(10, count);
+		assertFalse(reader.next());
+
+	}
+
+	public void testOptional() throws IOException {
+
+		List<String> files = new Vector<String>();
+		files.add(createFile("file1.txt", 10));
+		files.add(new File(FileUtil.path(FOLDER, "missing.txt")).getAbsolutePath());
+		files.add(createFile("file2.txt", 20));
+
+		// missing files are returned as null
+		PrefetchingHdfsReader reader = new PrefetchingHdfsReader(files);
+		reader.setOptional(true);
+		assertTrue(reader.next());
+		assertEquals(readFile(files.get(0)), read(reader.get()));
+		assertTrue(reader.next());
+		assertNull(reader.get());
+		assertTrue(reader.next());
+		assertEquals(readFile(files.get(2)), read(reader.get()));
+		assertFalse(reader.next());
+
+		// missing files fail
+		reader = new PrefetchingHdfsReader(files);
+		assertTrue(reader.next());
+		read(reader.get());
+		try {
+			reader.next();
+			fail("missing file not reported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("missing.txt"));
+		}
+		reader.close();
+
+	}
+
+	public void testCloseWhilePrefetching() throws Exception {
+
+		List<String> files = new Vector<String>();
+		for (int i = 0; i < 5; i++) {
+			files.add(createFile("file" + i + ".txt", 10));
+		}
+
+		// all files except the first one are opened until released
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<TrackingStream> streams = Collections.synchronizedList(new Vector<TrackingStream>());
+		final String first = files.get(0);
+
+		final PrefetchingHdfsReader reader = new PrefetchingHdfsReader(files) {
+			@Override
+			protected InputStream open(String file) throws IOException {
+				if (!file.equals(first)) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				TrackingStream stream = new TrackingStream(readFile(file));
+				streams.add(stream);
+				return stream;
+			}
+		};
+		reader.setPrefetch(2);
+
+		assertTrue(reader.next());
+		assertEquals(readFile(first), read(reader.get()));
+
+		Thread closer = new Thread() {
+			@Override
+			public void run() {
+				reader.close();
+			}
+		};
+		closer.start();
+
+		// close waits for running prefetches
+		closer.join(200);
+		assertTrue(closer.isAlive());
+
+		release.countDown();
+		closer.join(5000);
+		assertFalse(closer.isAlive());
+
+		// all prefetched streams are closed
+		assertEquals(3, streams.size());
+		for (TrackingStream stream : streams) {
+			assertTrue(stream.closed);
+		}
+
+	}
+
+	protected String createFile(String name, int size) throws IOException {
+		String filename = new File(FileUtil.path(FOLDER, name)).getAbsolutePath();
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			content.append((char) ('a' + (i % 26)));
+		}
+		LineWriter writer = new LineWriter(filename);
+		writer.write(content.toString());
+		writer.close();
+		return filename;
+	}
+
+	protected String readFile(String filename) throws IOException {
+		return read(new FileInputStream(filename));
+	}
+
+	protected String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toString("UTF-8");
+	}
+
+	class TrackingStream extends ByteArrayInputStream {
+
+		private volatile boolean closed = false;
+
+		public TrackingStream(String content) throws IOException {
+			super(content.getBytes("UTF-8"));
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+
+	}
+
+}